@@ -0,0 +1,115 @@
+package org.littleshoot.util.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.util.CipherSocket;
+import org.littleshoot.util.CommonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end benchmark of {@link CipherSocket} over loopback. Each
+ * operation sends a payload to a server that reads all of it and answers
+ * with a single encrypted byte, so this measures the full write, read and
+ * verify path including the TCP stack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherSocketBenchmark {
+
+    @Param({"1", "1024", "32768", "1048576", "4194304"})
+    public int size;
+
+    @Param({"1", "2"})
+    public byte version;
+
+    private ServerSocket server;
+
+    private Socket client;
+
+    private OutputStream os;
+
+    private InputStream is;
+
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] clientKey = CommonUtils.generateKey();
+        final byte[] serverKey = CommonUtils.generateKey();
+        this.data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    serve(new CipherSocket(server.accept(), serverKey,
+                        clientKey, version));
+                } catch (final IOException e) {
+                    // Closed at tear down.
+                }
+            }
+        }, "CipherSocketBenchmark-Server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        this.client = new CipherSocket(new Socket(server.getInetAddress(),
+            server.getLocalPort()), clientKey, serverKey, version);
+        this.client.setTcpNoDelay(true);
+        this.os = client.getOutputStream();
+        this.is = client.getInputStream();
+    }
+
+    private void serve(final Socket sock) throws IOException {
+        sock.setTcpNoDelay(true);
+        final InputStream sis = sock.getInputStream();
+        final OutputStream sos = sock.getOutputStream();
+        final byte[] buf = new byte[64 * 1024];
+        while (true) {
+            int remaining = size;
+            while (remaining > 0) {
+                final int read =
+                    sis.read(buf, 0, Math.min(buf.length, remaining));
+                if (read == -1) {
+                    return;
+                }
+                remaining -= read;
+            }
+            sos.write(1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.client.close();
+        this.server.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        this.os.write(data);
+        return this.is.read();
+    }
+}
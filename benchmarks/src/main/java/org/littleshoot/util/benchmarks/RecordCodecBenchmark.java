@@ -0,0 +1,86 @@
+package org.littleshoot.util.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.util.CommonUtils;
+import org.littleshoot.util.RecordCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for encoding and decoding records, both through the
+ * {@link CommonUtils} helpers that allocate their results and through the
+ * allocation-free {@link RecordCodec} buffer API. Run with
+ * <code>-prof gc</code> to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordCodecBenchmark {
+
+    @Param({"1", "1024", "16384", "32768", "262144", "4194304"})
+    public int size;
+
+    @Param({"1", "2"})
+    public byte version;
+
+    private byte[] key;
+
+    private byte[] data;
+
+    private byte[] encoded;
+
+    private RecordCodec codec;
+
+    private ByteBuffer encodedBuffer;
+
+    private ByteBuffer plainBuffer;
+
+    @Setup
+    public void setUp() {
+        this.key = CommonUtils.generateKey();
+        this.data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        this.codec = new RecordCodec(key, version);
+        this.encoded = codec.encode(data, 0, data.length);
+        this.encodedBuffer = ByteBuffer.allocate(encoded.length);
+        this.plainBuffer = ByteBuffer.allocate(encoded.length);
+    }
+
+    @Benchmark
+    public byte[] commonUtilsEncode() {
+        return CommonUtils.encode(key, data, 0, data.length);
+    }
+
+    @Benchmark
+    public byte[] commonUtilsDecodeAll() {
+        return CommonUtils.decodeAllMessages(key, encoded);
+    }
+
+    @Benchmark
+    public int codecEncodeInto() {
+        this.encodedBuffer.clear();
+        return codec.encodeInto(ByteBuffer.wrap(data), encodedBuffer);
+    }
+
+    @Benchmark
+    public int codecDecodeInto() {
+        this.plainBuffer.clear();
+        return codec.decodeInto(ByteBuffer.wrap(encoded), plainBuffer);
+    }
+}
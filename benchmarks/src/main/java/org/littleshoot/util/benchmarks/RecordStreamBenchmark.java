@@ -0,0 +1,127 @@
+package org.littleshoot.util.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.util.CommonUtils;
+import org.littleshoot.util.DecryptingInputStream;
+import org.littleshoot.util.EncryptingOutputStream;
+import org.littleshoot.util.InputRecord;
+import org.littleshoot.util.RecordCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the record streams and {@link InputRecord}, with writes
+ * going to a stream that discards them so only the record layer is
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordStreamBenchmark {
+
+    @Param({"1", "1024", "32768", "1048576", "4194304"})
+    public int size;
+
+    private byte[] data;
+
+    private byte[] encoded;
+
+    private byte[] readBuffer;
+
+    private RecordCodec codec;
+
+    private EncryptingOutputStream unbuffered;
+
+    private EncryptingOutputStream buffered;
+
+    private InputRecord record;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] key = CommonUtils.generateKey();
+        this.data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        this.codec = new RecordCodec(key);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final EncryptingOutputStream eos =
+            new EncryptingOutputStream(new RecordCodec(key), baos);
+        eos.write(data);
+        eos.close();
+        this.encoded = baos.toByteArray();
+        this.readBuffer = new byte[8192];
+        this.unbuffered =
+            new EncryptingOutputStream(new RecordCodec(key), new NullStream());
+        this.buffered = new EncryptingOutputStream(new RecordCodec(key),
+            new NullStream(), EncryptingOutputStream.MAX_LINGER_THRESHOLD);
+        this.record = new InputRecord(codec);
+    }
+
+    @Benchmark
+    public void encryptingWrite() throws IOException {
+        this.unbuffered.write(data);
+    }
+
+    @Benchmark
+    public void encryptingBufferedWrite() throws IOException {
+        this.buffered.write(data);
+        this.buffered.flush();
+    }
+
+    @Benchmark
+    public long decryptingRead() throws IOException {
+        final DecryptingInputStream dis = new DecryptingInputStream(codec,
+            new ByteArrayInputStream(encoded));
+        long total = 0;
+        int read;
+        while ((read = dis.read(readBuffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long inputRecord() {
+        final ByteBuffer bb = ByteBuffer.wrap(encoded);
+        long total = 0;
+        while (bb.hasRemaining()) {
+            this.record.addData(bb);
+            while (this.record.hasMoreData()) {
+                total += this.record.drainData(readBuffer, 0,
+                    readBuffer.length);
+            }
+            this.record.reset();
+        }
+        return total;
+    }
+
+    private static final class NullStream extends OutputStream {
+
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    }
+}
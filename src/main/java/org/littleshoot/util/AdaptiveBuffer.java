@@ -0,0 +1,111 @@
+package org.littleshoot.util;
+
+/**
+ * A copy buffer that resizes itself based on how full each read leaves it.
+ * Reads that keep filling the buffer mean the source has more data than
+ * we're taking per read, so the buffer doubles. Reads that keep using less
+ * than a quarter of it mean we're holding memory the session doesn't need,
+ * so it halves. Created by an {@link AdaptiveBufferSizer}, which decides
+ * whether there's memory to grow into.
+ * <p>
+ * Callers should read into {@link #array()} afresh for each read, as it can
+ * change after {@link #onRead(int)}. Instances aren't thread safe.
+ */
+public class AdaptiveBuffer {
+
+    /**
+     * How many full reads in a row it takes to grow.
+     */
+    private static final int GROW_AFTER = 4;
+
+    /**
+     * How many small reads in a row it takes to shrink. This is higher than
+     * for growing so bursty transfers don't flap.
+     */
+    private static final int SHRINK_AFTER = 16;
+
+    private final AdaptiveBufferSizer sizer;
+
+    private byte[] buffer;
+
+    private int fullReads;
+
+    private int smallReads;
+
+    private boolean released;
+
+    AdaptiveBuffer(final AdaptiveBufferSizer sizer, final int size) {
+        this.sizer = sizer;
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Accessor for the array to read into next.
+     *
+     * @return The array.
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Accessor for the current size of the buffer.
+     *
+     * @return The current size.
+     */
+    public int size() {
+        return buffer.length;
+    }
+
+    /**
+     * Records how many bytes the last read put into the array, resizing
+     * the buffer if the recent reads call for it. Any data in the array has
+     * to have been used by the time this is called.
+     *
+     * @param read The number of bytes read.
+     */
+    public void onRead(final int read) {
+        final int size = this.buffer.length;
+        if (read >= size) {
+            this.smallReads = 0;
+            if (++this.fullReads >= GROW_AFTER) {
+                this.fullReads = 0;
+                final int grown =
+                    Math.min(AdaptiveBufferSizer.MAX_BUFFER_SIZE, size * 2);
+                if (grown > size && this.sizer.tryReserve(grown - size)) {
+                    this.buffer = new byte[grown];
+                }
+            }
+        } else if (read < size / 4) {
+            this.fullReads = 0;
+            if (++this.smallReads >= SHRINK_AFTER) {
+                this.smallReads = 0;
+                final int shrunk =
+                    Math.max(AdaptiveBufferSizer.MIN_BUFFER_SIZE, size / 2);
+                if (shrunk < size) {
+                    this.buffer = new byte[shrunk];
+                    this.sizer.release(size - shrunk);
+                }
+            }
+        } else {
+            this.fullReads = 0;
+            this.smallReads = 0;
+        }
+    }
+
+    /**
+     * Gives this buffer's memory back to the budget. The buffer shouldn't be
+     * used afterwards.
+     */
+    public void release() {
+        if (!this.released) {
+            this.released = true;
+            this.sizer.release(this.buffer.length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveBuffer [size=" + buffer.length + "]";
+    }
+}
@@ -0,0 +1,129 @@
+package org.littleshoot.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out copy buffers that grow and shrink with the traffic going
+ * through them, all drawing on one shared memory budget. A copy loop that
+ * keeps filling its buffer, like a bulk download, has its buffer doubled
+ * for as long as the budget allows, while one that only ever sees small
+ * reads, like an interactive session, drops back towards
+ * {@link #MIN_BUFFER_SIZE}.
+ * <p>
+ * Buffers count against the budget at their full size. A buffer only
+ * starts above {@link #MIN_BUFFER_SIZE} or grows while that keeps the total
+ * within the budget. A copy loop always gets at least a
+ * {@link #MIN_BUFFER_SIZE} buffer, though, even when the budget is used up.
+ * The total can therefore go over the budget by up to
+ * {@link #MIN_BUFFER_SIZE} per buffer, but only once there are enough
+ * buffers to use up the budget at their minimum size. This class is thread
+ * safe, but each {@link AdaptiveBuffer} belongs to a single copy loop.
+ */
+public class AdaptiveBufferSizer {
+
+    /**
+     * The smallest buffer we hand out.
+     */
+    public static final int MIN_BUFFER_SIZE = 1024;
+
+    /**
+     * The largest buffer we hand out.
+     */
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The budget of the default sizer.
+     */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    private static final AdaptiveBufferSizer DEFAULT =
+        new AdaptiveBufferSizer(DEFAULT_BUDGET);
+
+    private final long budget;
+
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * Creates a new sizer.
+     *
+     * @param budget The most memory, in bytes, that all the buffers
+     * together may grow into.
+     */
+    public AdaptiveBufferSizer(final long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the sizer shared by everything that doesn't set its own, with
+     * a budget of {@link #DEFAULT_BUDGET}.
+     *
+     * @return The default sizer.
+     */
+    public static AdaptiveBufferSizer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Creates a new buffer for a copy loop. The buffer starts at the
+     * requested size if the budget allows it, and otherwise at
+     * {@link #MIN_BUFFER_SIZE}, which is counted even if it takes us over
+     * the budget. It has to be released when the copy is done.
+     *
+     * @param initialSize The size to start at.
+     * @return The new buffer.
+     */
+    public AdaptiveBuffer newBuffer(final int initialSize) {
+        final int size = Math.max(MIN_BUFFER_SIZE,
+            Math.min(MAX_BUFFER_SIZE, initialSize));
+        if (tryReserve(size)) {
+            return new AdaptiveBuffer(this, size);
+        }
+        this.reserved.addAndGet(MIN_BUFFER_SIZE);
+        return new AdaptiveBuffer(this, MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Accessor for the budget.
+     *
+     * @return The budget in bytes.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns how much memory buffers are using right now, which can be
+     * more than the budget.
+     *
+     * @return The reserved bytes.
+     */
+    public long getReserved() {
+        return this.reserved.get();
+    }
+
+    boolean tryReserve(final int bytes) {
+        while (true) {
+            final long current = this.reserved.get();
+            final long next = current + bytes;
+            if (next > this.budget) {
+                return false;
+            }
+            if (this.reserved.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    void release(final int bytes) {
+        this.reserved.addAndGet(-bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveBufferSizer [budget=" + budget + ", reserved=" +
+            getReserved() + "]";
+    }
+}
@@ -0,0 +1,345 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads connections across the backends from a {@link CandidateProvider},
+ * such as a {@link DnsSrvCandidateProvider}, either to the backend with the
+ * fewest open connections or to the one that's been quickest to connect
+ * to.
+ * <p>
+ * Each backend has a circuit breaker. After a few failed connects in a row
+ * we stop trying the backend for a while, then let a single connect through
+ * to see if it's back. A slow or dead backend therefore costs one connect
+ * timeout every so often rather than one per session. If every backend's
+ * breaker is open we try them all anyway, as that beats failing outright.
+ * <p>
+ * Callers have to {@link #release(Socket)} each connection when they're
+ * done with it so the connection counts stay right. This class is thread
+ * safe.
+ */
+public class BackendSelector {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BackendSelector.class);
+
+    /**
+     * How we pick between healthy backends.
+     */
+    public enum Strategy {
+
+        /**
+         * The backend with the fewest connections we've handed out and not
+         * had released.
+         */
+        LEAST_CONNECTIONS,
+
+        /**
+         * The backend with the lowest average connect time. Backends we
+         * haven't connected to yet come first.
+         */
+        LOWEST_LATENCY
+    }
+
+    /**
+     * How many failed connects in a row open a backend's breaker.
+     */
+    private static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * How long a backend's breaker stays open before we try it again.
+     */
+    private static final long OPEN_MILLIS = 10 * 1000;
+
+    /**
+     * How long we use the provider's candidates before asking again.
+     */
+    private static final long REFRESH_MILLIS = 60 * 1000;
+
+    /**
+     * The weight of the newest sample in the average connect time.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final CandidateProvider<InetSocketAddress> provider;
+
+    private final Strategy strategy;
+
+    private final ConcurrentMap<InetSocketAddress, Backend> backends =
+        new ConcurrentHashMap<InetSocketAddress, Backend>();
+
+    private final ConcurrentMap<Socket, Backend> leased =
+        new ConcurrentHashMap<Socket, Backend>();
+
+    private final Random random = new Random();
+
+    private volatile List<InetSocketAddress> candidates =
+        Collections.emptyList();
+
+    private volatile long lastRefresh = 0;
+
+    /**
+     * Creates a new selector.
+     *
+     * @param provider The provider of backend addresses.
+     * @param strategy How to pick between healthy backends.
+     */
+    public BackendSelector(final CandidateProvider<InetSocketAddress> provider,
+        final Strategy strategy) {
+        this.provider = provider;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Connects to the best backend, moving on to the next best if that
+     * fails, until we run out of backends.
+     *
+     * @param timeout The connect timeout for each backend, in milliseconds.
+     * @return The connected socket.
+     * @throws IOException If we couldn't connect to any backend.
+     */
+    public Socket connect(final int timeout) throws IOException {
+        final List<Backend> ordered = order();
+        if (ordered.isEmpty()) {
+            throw new IOException("No backends from " + provider);
+        }
+        IOException last = null;
+        for (final Backend backend : ordered) {
+            if (!backend.tryAcquire()) {
+                // Another caller is already probing this backend.
+                continue;
+            }
+            final Socket sock = new Socket();
+            final long start = System.nanoTime();
+            try {
+                sock.connect(backend.address, timeout);
+            } catch (final IOException e) {
+                IOUtils.closeQuietly(sock);
+                backend.failed();
+                LOG.debug("Could not connect to " + backend.address, e);
+                last = e;
+                continue;
+            }
+            backend.connected(System.nanoTime() - start);
+            this.leased.put(sock, backend);
+            return sock;
+        }
+        if (last == null) {
+            throw new IOException("No backend available");
+        }
+        throw new IoExceptionWithCause("Could not connect to any backend",
+            last);
+    }
+
+    /**
+     * Lets us know a connection from {@link #connect(int)} is closed.
+     * Releasing a connection more than once is fine.
+     *
+     * @param sock The connection.
+     */
+    public void release(final Socket sock) {
+        final Backend backend = this.leased.remove(sock);
+        if (backend != null) {
+            backend.active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of open connections we've handed out to the
+     * specified backend.
+     *
+     * @param address The backend.
+     * @return The number of connections.
+     */
+    public int getConnections(final InetSocketAddress address) {
+        final Backend backend = this.backends.get(address);
+        return backend == null ? 0 : backend.active.get();
+    }
+
+    /**
+     * Returns whether or not we're currently skipping the specified
+     * backend because of failed connects.
+     *
+     * @param address The backend.
+     * @return <code>true</code> if the backend's breaker is open, otherwise
+     * <code>false</code>.
+     */
+    public boolean isTripped(final InetSocketAddress address) {
+        final Backend backend = this.backends.get(address);
+        return backend != null && !backend.isClosed();
+    }
+
+    /**
+     * Returns the backends in the order we should try them.
+     */
+    private List<Backend> order() {
+        final List<Backend> healthy = new ArrayList<Backend>();
+        final List<Backend> tripped = new ArrayList<Backend>();
+        for (final InetSocketAddress address : candidates()) {
+            Backend backend = this.backends.get(address);
+            if (backend == null) {
+                final Backend created = new Backend(address);
+                backend = this.backends.putIfAbsent(address, created);
+                if (backend == null) {
+                    backend = created;
+                }
+            }
+            if (backend.isAvailable()) {
+                healthy.add(backend);
+            } else {
+                tripped.add(backend);
+            }
+        }
+        // Shuffle first so ties don't all go to the same backend.
+        Collections.shuffle(healthy, this.random);
+        final List<Backend> ordered = new ArrayList<Backend>(healthy.size());
+        while (!healthy.isEmpty()) {
+            Backend best = null;
+            for (final Backend backend : healthy) {
+                if (best == null || better(backend, best)) {
+                    best = backend;
+                }
+            }
+            healthy.remove(best);
+            ordered.add(best);
+        }
+        if (ordered.isEmpty()) {
+            LOG.debug("All backends tripped, trying them anyway");
+            for (final Backend backend : tripped) {
+                backend.forceHalfOpen();
+            }
+            ordered.addAll(tripped);
+        }
+        return ordered;
+    }
+
+    private boolean better(final Backend b1, final Backend b2) {
+        switch (this.strategy) {
+            case LOWEST_LATENCY:
+                return b1.latency < b2.latency;
+            case LEAST_CONNECTIONS:
+            default:
+                return b1.active.get() < b2.active.get();
+        }
+    }
+
+    private List<InetSocketAddress> candidates() {
+        final long now = System.currentTimeMillis();
+        if (this.candidates.isEmpty() ||
+            now - this.lastRefresh > REFRESH_MILLIS) {
+            final Collection<InetSocketAddress> fresh =
+                this.provider.getCandidates();
+            if (fresh != null && !fresh.isEmpty()) {
+                this.candidates = new ArrayList<InetSocketAddress>(fresh);
+            }
+            this.lastRefresh = now;
+        }
+        return this.candidates;
+    }
+
+    @Override
+    public String toString() {
+        return "BackendSelector [strategy=" + strategy + ", backends=" +
+            backends.values() + "]";
+    }
+
+    /**
+     * What we know about one backend.
+     */
+    private static final class Backend {
+
+        private final InetSocketAddress address;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        /**
+         * Average connect time in nanoseconds, or zero before we've
+         * connected.
+         */
+        private volatile double latency = 0;
+
+        private int failures = 0;
+
+        /**
+         * When the breaker opened, or zero if it's closed.
+         */
+        private long openedAt = 0;
+
+        /**
+         * Whether a single connect is being let through to test the
+         * backend.
+         */
+        private boolean probing = false;
+
+        private Backend(final InetSocketAddress address) {
+            this.address = address;
+        }
+
+        private synchronized boolean isClosed() {
+            return this.openedAt == 0;
+        }
+
+        private synchronized boolean isAvailable() {
+            return this.openedAt == 0 || (!this.probing &&
+                System.currentTimeMillis() - this.openedAt >= OPEN_MILLIS);
+        }
+
+        /**
+         * Checks the breaker and counts the connection we're about to make.
+         */
+        private synchronized boolean tryAcquire() {
+            if (this.openedAt != 0) {
+                if (!isAvailable()) {
+                    return false;
+                }
+                this.probing = true;
+            }
+            this.active.incrementAndGet();
+            return true;
+        }
+
+        private synchronized void forceHalfOpen() {
+            if (this.openedAt != 0 && !this.probing) {
+                this.openedAt = 1;
+            }
+        }
+
+        private synchronized void connected(final long nanos) {
+            this.failures = 0;
+            this.openedAt = 0;
+            this.probing = false;
+            this.latency = this.latency == 0 ? nanos :
+                LATENCY_WEIGHT * nanos + (1 - LATENCY_WEIGHT) * this.latency;
+        }
+
+        private synchronized void failed() {
+            this.active.decrementAndGet();
+            this.probing = false;
+            this.failures++;
+            if (this.openedAt != 0 || this.failures >= FAILURE_THRESHOLD) {
+                LOG.info("Tripping breaker for {}", this.address);
+                this.openedAt = System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Backend [address=" + address + ", active=" +
+                active.get() + ", latency=" + (long) latency + "]";
+        }
+    }
+}
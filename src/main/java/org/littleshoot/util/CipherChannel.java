@@ -0,0 +1,268 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encrypting and decrypting and HMAC verifying channel over a
+ * {@link SocketChannel}. This speaks the same records as
+ * {@link EncryptingOutputStream} and {@link DecryptingInputStream}, but
+ * frames them incrementally so it works with non-blocking channels.
+ * <p>
+ * The channel itself isn't selectable. Register the wrapped channel with
+ * {@link #register(Selector, int, Object)} and keep two things in mind:
+ * <ul>
+ * <li>Reads decrypt whole records, so plain text can be left over after a
+ * read. Check {@link #hasBufferedInput()} before waiting for
+ * {@link SelectionKey#OP_READ} again.</li>
+ * <li>Writes encode records that the socket may only partly accept. Check
+ * {@link #hasPendingOutput()} and call {@link #flush()} when the channel
+ * is writable until it returns <code>true</code>.</li>
+ * </ul>
+ * Like the streams, instances aren't safe for concurrent reads or
+ * concurrent writes, but one thread may read while another writes.
+ */
+public class CipherChannel implements ByteChannel {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(CipherChannel.class);
+
+    private final SocketChannel channel;
+
+    private final RecordCodec writeCodec;
+
+    private final RecordCodec readCodec;
+
+    /**
+     * Raw bytes read from the channel that don't make up a full record yet.
+     * Always left ready for the next channel read.
+     */
+    private final ByteBuffer netIn;
+
+    /**
+     * Decrypted bytes the caller didn't have room for. Always left ready
+     * for the caller to drain.
+     */
+    private final ByteBuffer plainIn;
+
+    /**
+     * Encoded records the channel hasn't accepted yet. Always left ready to
+     * write to the channel.
+     */
+    private final ByteBuffer netOut;
+
+    private boolean eof = false;
+
+    /**
+     * Creates a new cipher channel that writes version 1 records.
+     *
+     * @param channel The channel to wrap.
+     * @param writeKey The key to encrypt with.
+     * @param readKey The key to decrypt with.
+     */
+    public CipherChannel(final SocketChannel channel, final byte[] writeKey,
+        final byte[] readKey) {
+        this(channel, new RecordCodec(writeKey), new RecordCodec(readKey));
+    }
+
+    /**
+     * Creates a new cipher channel with the specified codecs, for example
+     * to write a different record version.
+     *
+     * @param channel The channel to wrap.
+     * @param writeCodec The codec to encrypt with.
+     * @param readCodec The codec to decrypt with.
+     */
+    public CipherChannel(final SocketChannel channel,
+        final RecordCodec writeCodec, final RecordCodec readCodec) {
+        if (channel == null) {
+            LOG.error("Channel can't be null!");
+            throw new NullPointerException("Channel can't be null!");
+        }
+        this.channel = channel;
+        this.writeCodec = writeCodec;
+        this.readCodec = readCodec;
+        this.netIn = ByteBuffer.allocate(readCodec.maxRecordLength());
+        this.plainIn = ByteBuffer.allocate(readCodec.maxRecordLength());
+        this.plainIn.limit(0);
+        this.netOut = ByteBuffer.allocate(
+            writeCodec.encodedLength(writeCodec.getMaxRecordSize()));
+        this.netOut.limit(0);
+    }
+
+    /**
+     * Accessor for the wrapped channel. Never read from or write to this
+     * channel directly, as that skips encryption.
+     *
+     * @return The wrapped channel.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Registers the wrapped channel with the specified selector.
+     *
+     * @param selector The selector to register with.
+     * @param ops The operations we're interested in.
+     * @param att The attachment for the key, often this channel.
+     * @return The key for the wrapped channel.
+     * @throws ClosedChannelException If the channel is closed.
+     */
+    public SelectionKey register(final Selector selector, final int ops,
+        final Object att) throws ClosedChannelException {
+        return channel.register(selector, ops, att);
+    }
+
+    /**
+     * Reads decrypted data into the specified buffer. Only whole, verified
+     * records are ever handed out.
+     *
+     * @param dst The buffer to read into.
+     * @return The number of bytes read, possibly zero if a non-blocking
+     * channel doesn't have a full record yet, or -1 at the end of the
+     * stream.
+     * @throws IOException If there's an error reading from the channel or
+     * the stream ends in the middle of a record.
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        while (true) {
+            if (this.plainIn.hasRemaining()) {
+                return drainPlain(dst);
+            }
+            this.netIn.flip();
+            final int before = this.netIn.remaining();
+            // Decrypt straight into the caller's buffer when there's room,
+            // otherwise hold onto the plain text.
+            int read = this.readCodec.decodeInto(this.netIn, dst);
+            if (read == 0 && before == this.netIn.remaining()) {
+                this.plainIn.clear();
+                this.readCodec.decodeInto(this.netIn, this.plainIn);
+                this.plainIn.flip();
+            }
+            final boolean decoded = before != this.netIn.remaining();
+            this.netIn.compact();
+            if (read > 0) {
+                return read;
+            }
+            if (decoded) {
+                // Either buffered plain text or an empty record.
+                continue;
+            }
+            if (this.eof) {
+                if (this.netIn.position() > 0) {
+                    throw new IOException("Stream ended mid-record");
+                }
+                return -1;
+            }
+            read = this.channel.read(this.netIn);
+            if (read == -1) {
+                this.eof = true;
+            } else if (read == 0) {
+                return 0;
+            }
+        }
+    }
+
+    private int drainPlain(final ByteBuffer dst) {
+        final int toCopy = Math.min(dst.remaining(), this.plainIn.remaining());
+        final int limit = this.plainIn.limit();
+        this.plainIn.limit(this.plainIn.position() + toCopy);
+        dst.put(this.plainIn);
+        this.plainIn.limit(limit);
+        return toCopy;
+    }
+
+    /**
+     * Returns whether or not decrypted data is waiting to be read. The
+     * selector doesn't know about this data.
+     *
+     * @return <code>true</code> if a read will return data without touching
+     * the wrapped channel, otherwise <code>false</code>.
+     */
+    public boolean hasBufferedInput() {
+        return this.plainIn.hasRemaining();
+    }
+
+    /**
+     * Encrypts data from the specified buffer and writes it to the channel.
+     * Data is consumed a record at a time for as long as the channel
+     * accepts all the previous records. A record the channel only partly
+     * accepted is held until {@link #flush()}.
+     *
+     * @param src The plain text to write.
+     * @return The number of plain text bytes consumed, which is zero if
+     * earlier output is still pending.
+     * @throws IOException If there's an error writing to the channel.
+     */
+    public int write(final ByteBuffer src) throws IOException {
+        int written = 0;
+        while (src.hasRemaining() && flush()) {
+            final int len =
+                Math.min(src.remaining(), this.writeCodec.getMaxRecordSize());
+            final int limit = src.limit();
+            src.limit(src.position() + len);
+            this.netOut.clear();
+            try {
+                this.writeCodec.encodeInto(src, this.netOut);
+            } finally {
+                src.limit(limit);
+                this.netOut.flip();
+            }
+            written += len;
+        }
+        // Push out the last record.
+        flush();
+        return written;
+    }
+
+    /**
+     * Writes any pending encoded records to the channel.
+     *
+     * @return <code>true</code> if all pending output is written, otherwise
+     * <code>false</code>.
+     * @throws IOException If there's an error writing to the channel.
+     */
+    public boolean flush() throws IOException {
+        if (this.netOut.hasRemaining()) {
+            this.channel.write(this.netOut);
+        }
+        return !this.netOut.hasRemaining();
+    }
+
+    /**
+     * Returns whether or not encoded records are still waiting for the
+     * channel to accept them.
+     *
+     * @return <code>true</code> if there's pending output, otherwise
+     * <code>false</code>.
+     */
+    public boolean hasPendingOutput() {
+        return this.netOut.hasRemaining();
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        LOG.info("CLOSING CHANNEL");
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "CipherChannel [channel=" + channel + "]";
+    }
+}
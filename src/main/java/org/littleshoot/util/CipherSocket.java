@@ -21,12 +21,53 @@ public class CipherSocket extends Socket {
         LoggerFactory.getLogger(CipherSocket.class);
     private final byte[] writeKey;
     private final byte[] readKey;
+    private final byte writeVersion;
+    private final int maxRecordSize;
+    private volatile boolean compressing = false;
+    private final RecordStats stats = 
+        new RecordStats(RecordStats.getAggregate());
     private final Socket sock;
     private int storedTimeout = 0;
     private final long startTime = System.currentTimeMillis();
+    private CipherChannel cipherChannel;
+    private OutputStream outputStream;
+    private InputStream inputStream;
 
     public CipherSocket(final Socket sock, final byte[] writeKey, 
         final byte[] readKey) {
+        this(sock, writeKey, readKey, RecordCodec.VERSION_HMAC);
+    }
+    
+    /**
+     * Creates a new cipher socket that writes records of the specified 
+     * version. Records of any version are always accepted on reads.
+     * 
+     * @param sock The socket to wrap.
+     * @param writeKey The key to encrypt with.
+     * @param readKey The key to decrypt with.
+     * @param writeVersion The version of the records to write, such as
+     * {@link RecordCodec#VERSION_GCM}.
+     */
+    public CipherSocket(final Socket sock, final byte[] writeKey, 
+        final byte[] readKey, final byte writeVersion) {
+        this(sock, writeKey, readKey, writeVersion, CommonUtils.SIZE_LIMIT);
+    }
+    
+    /**
+     * Creates a new cipher socket for bulk transfers that writes jumbo 
+     * records of up to the specified size. The peer has to use the same 
+     * maximum record size to accept them.
+     * 
+     * @param sock The socket to wrap.
+     * @param writeKey The key to encrypt with.
+     * @param readKey The key to decrypt with.
+     * @param writeVersion The version of the records to write, such as
+     * {@link RecordCodec#VERSION_GCM}.
+     * @param maxRecordSize The most plain text per record, such as 256 KB.
+     */
+    public CipherSocket(final Socket sock, final byte[] writeKey, 
+        final byte[] readKey, final byte writeVersion, 
+        final int maxRecordSize) {
         LOG.info("Creating new cipher socket!!");
         if (writeKey == null) {
             LOG.error("Write key can't be null!");
@@ -39,18 +80,79 @@ public class CipherSocket extends Socket {
         this.sock = sock;
         this.writeKey = writeKey;
         this.readKey = readKey;
+        this.writeVersion = writeVersion;
+        this.maxRecordSize = maxRecordSize;
     }
     
 
+    /**
+     * Returns the encrypting stream for this socket. The stream is created
+     * on the first call and the same stream is returned from then on, just
+     * as with plain sockets.
+     */
     @Override
-    public OutputStream getOutputStream() throws IOException {
-        return new EncryptingOutputStream(this.writeKey, sock.getOutputStream());
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        if (this.outputStream == null) {
+            this.outputStream = new EncryptingOutputStream(newWriteCodec(), 
+                sock.getOutputStream());
+        }
+        return this.outputStream;
     }
     
+    /**
+     * Returns the decrypting stream for this socket. The stream is created
+     * on the first call and the same stream is returned from then on, so
+     * partially read records are never lost between calls.
+     */
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+        if (this.inputStream == null) {
+            this.inputStream = new DecryptingInputStream(newReadCodec(), 
+                sock.getInputStream());
+        }
+        return this.inputStream;
+    }
 
-    @Override
-    public InputStream getInputStream() throws IOException {
-        return new DecryptingInputStream(this.readKey, sock.getInputStream());
+    /**
+     * Sets whether or not to compress the records we write, which helps 
+     * with text protocols. This only affects streams and channels created
+     * after the call, and the peer has to read compressed records.
+     * 
+     * @param compressing Whether or not to compress records.
+     */
+    public void setCompressing(final boolean compressing) {
+        this.compressing = compressing;
+    }
+
+    private RecordCodec newWriteCodec() {
+        final RecordCodec codec = new RecordCodec(this.writeKey, 
+            this.writeVersion, this.maxRecordSize);
+        codec.setCompressing(this.compressing);
+        codec.setStats(this.stats);
+        return codec;
+    }
+
+    private RecordCodec newReadCodec() {
+        final RecordCodec codec = new RecordCodec(this.readKey, 
+            this.writeVersion, this.maxRecordSize);
+        codec.setStats(this.stats);
+        return codec;
+    }
+    
+    /**
+     * Accessor for the record counters and latencies of this socket. These
+     * also roll up into {@link RecordStats#getAggregate()}.
+     * 
+     * @return The stats for this socket.
+     */
+    public RecordStats getRecordStats() {
+        return stats;
     }
 
     @Override
@@ -75,9 +177,33 @@ public class CipherSocket extends Socket {
         sock.connect(endpoint);
     }
 
+    /**
+     * Always returns <code>null</code>, as reading from or writing to the
+     * wrapped socket's channel would skip encryption. Use
+     * {@link #getCipherChannel()} instead.
+     */
     @Override
     public SocketChannel getChannel() {
-        return sock.getChannel();
+        return null;
+    }
+
+    /**
+     * Returns the encrypting channel for this socket, if the wrapped socket
+     * was created with a channel.
+     *
+     * @return The encrypting channel, or <code>null</code> if the wrapped 
+     * socket has no channel.
+     */
+    public synchronized CipherChannel getCipherChannel() {
+        if (this.cipherChannel == null) {
+            final SocketChannel channel = sock.getChannel();
+            if (channel == null) {
+                return null;
+            }
+            this.cipherChannel = 
+                new CipherChannel(channel, newWriteCodec(), newReadCodec());
+        }
+        return this.cipherChannel;
     }
 
     @Override
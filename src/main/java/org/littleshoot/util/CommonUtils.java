@@ -12,24 +12,16 @@ import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Properties;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
@@ -62,9 +54,6 @@ public class CommonUtils {
 
     public static final String UPLOAD_SPEED_KEY = "UPLOAD_SPEED";
     
-    //private static final String DEFAULT_CIPHER = "AES/CBC/PKCS5Padding";
-    private static final String DEFAULT_CIPHER = "AES";
-    
     private final static KeyGenerator keyGenerator;
     
     private static final SecureRandom secureRandom = new SecureRandom();
@@ -89,18 +78,62 @@ public class CommonUtils {
     
     public static void threadedCopy(final InputStream is, final OutputStream os,
         final String threadName) {
+        threadedCopy(is, os, threadName, null);
+    }
+    
+    /**
+     * Copies the input stream to the output stream on a thread from the
+     * specified factory.
+     * 
+     * @param is The stream to copy from.
+     * @param os The stream to copy to.
+     * @param threadName The name of the copying thread.
+     * @param threadFactory The factory for the copying thread, such as one
+     * from {@link ThreadUtils#newVirtualThreadFactory(String)}, or 
+     * <code>null</code> for a daemon thread.
+     */
+    public static void threadedCopy(final InputStream is, final OutputStream os,
+        final String threadName, final ThreadFactory threadFactory) {
+        threadedCopy(is, os, threadName, threadFactory, null);
+    }
+    
+    /**
+     * Copies the input stream to the output stream on a thread from the
+     * specified factory, no faster than the specified bucket allows.
+     * 
+     * @param is The stream to copy from.
+     * @param os The stream to copy to.
+     * @param threadName The name of the copying thread.
+     * @param threadFactory The factory for the copying thread, or 
+     * <code>null</code> for a daemon thread.
+     * @param bucket The bucket to shape the copy with, or <code>null</code>
+     * to copy as fast as possible.
+     */
+    public static void threadedCopy(final InputStream is, final OutputStream os,
+        final String threadName, final ThreadFactory threadFactory,
+        final TokenBucket bucket) {
         final Runnable runner = new Runnable() {
             @Override
             public void run() {
                 try {
-                    IOUtils.copy(is, os);
+                    if (bucket == null) {
+                        IOUtils.copy(is, os);
+                    } else {
+                        IoUtils.copy(is, os, bucket);
+                    }
                 } catch (final IOException e) {
                     LOG.info("Exception on copy. Hung up?", e);
                 }
             }
         };
-        final Thread t = new Thread(runner, threadName);
-        t.setDaemon(true);
+        final Thread t;
+        if (threadFactory == null) {
+            t = new Thread(runner, threadName);
+            t.setDaemon(true);
+        } else {
+            t = threadFactory.newThread(runner);
+            t.setName(threadName);
+        }
         t.start();
     }
     
@@ -209,6 +242,29 @@ public class CommonUtils {
         }
     }
 
+    /**
+     * Creates a bucket for shaping uploads to the rate the user set with
+     * {@link #UPLOAD_SPEED_KEY}, in kilobytes per second. Per-session 
+     * buckets can use it as their parent to share the limit.
+     * 
+     * @return The new bucket, which doesn't limit anything if there's no
+     * valid upload speed set.
+     */
+    public static TokenBucket newUploadBucket() {
+        final Properties props = getProps();
+        final String speed = props == null ? null : 
+            props.getProperty(UPLOAD_SPEED_KEY);
+        long rate = 0;
+        if (StringUtils.isNotBlank(speed)) {
+            try {
+                rate = Long.parseLong(speed.trim()) * 1024;
+            } catch (final NumberFormatException e) {
+                LOG.warn("Bad upload speed: {}", speed);
+            }
+        }
+        return new TokenBucket(rate);
+    }
+
     public static void setProperty(final String key, final String value) {
         final Properties props = getProps();
         props.setProperty(key, value);
@@ -294,115 +350,124 @@ public class CommonUtils {
     
 
     //private static final int SIZE_LIMIT = (int) Math.pow(2, 16);
-    private static final int SIZE_LIMIT = (int) Math.pow(2, 15);
+    static final int SIZE_LIMIT = (int) Math.pow(2, 15);
     
-    public static byte[] encode(final byte[] key, final byte[] data, 
-        final int off, final int len) {
-        if (len < SIZE_LIMIT) {
-            return encodeSingleMessage(key, data, off, len);
-        }
-        final int numArrays = 
-            (int) Math.ceil((double)data.length/(double)SIZE_LIMIT);
-        final Collection<byte[]> arrays = new ArrayList<byte[]>(numArrays);
-
-        int index = 0;
-        for (int i = 0; i < numArrays; i++) {
-            final int size;
-            final int remaining = data.length - index;
-            if (remaining < SIZE_LIMIT) {
-                size = remaining;
+    /**
+     * The number of codecs to cache per thread. This is small because a
+     * thread typically works with a read key and a write key at most.
+     */
+    private static final int CODECS_PER_THREAD = 4;
+    
+    private static final ThreadLocal<RecordCodec[]> threadCodecs = 
+        new ThreadLocal<RecordCodec[]>() {
+            @Override
+            protected RecordCodec[] initialValue() {
+                return new RecordCodec[CODECS_PER_THREAD];
             }
-            else {
-                size = SIZE_LIMIT;
+        };
+    
+    /**
+     * Returns the calling thread's cached {@link RecordCodec} for the 
+     * specified key, creating one if necessary.
+     * 
+     * @param key The key.
+     * @return The codec for the key.
+     */
+    static RecordCodec codecFor(final byte[] key) {
+        final RecordCodec[] codecs = threadCodecs.get();
+        for (final RecordCodec codec : codecs) {
+            if (codec != null && codec.hasKey(key)) {
+                return codec;
             }
-            final byte[] msg = encodeSingleMessage(key, data, index, size);
-            arrays.add(msg);
-            index += size;
         }
-        return CommonUtils.combine(arrays);
+        // Evict the least recently added codec.
+        System.arraycopy(codecs, 0, codecs, 1, codecs.length - 1);
+        codecs[0] = new RecordCodec(key);
+        return codecs[0];
+    }
+    
+    public static byte[] encode(final byte[] key, final byte[] data, 
+        final int off, final int len) {
+        return codecFor(key).encode(data, off, len);
     }
 
     public static byte[] encodeSingleMessage(final byte[] key, 
         final byte[] data, final int off, final int len) {
-        /*
-        0                   1                   2                   3
-        0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
-       +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-       |    Version    |         Message Length        |               
-       +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-       |                                                               |
-       |                        Message (N bytes)                      |
-       |                                                               |
-       +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-       |                          MAC (N bytes)                        |
-       +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-       */
-        final SecretKeySpec skeySpec = new SecretKeySpec(key, "AES");
-        final Cipher cipher;
-        final ByteBuffer dataBuf = ByteBuffer.wrap(data, off, len);
-        final int cipherTextLength;
-        if (len > 7) {
-            cipherTextLength = len * 2;
-        } else {
-            cipherTextLength = 16;
-        }
-        final byte[] cipherTextBytes = new byte[cipherTextLength];
-        final ByteBuffer cipherText = ByteBuffer.wrap(cipherTextBytes);
-        final int written;
-        try {
-            cipher = Cipher.getInstance(DEFAULT_CIPHER);
-            cipher.init(Cipher.ENCRYPT_MODE, skeySpec);
-            written = cipher.doFinal(dataBuf, cipherText);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("No AES?", e);
-        } catch (final NoSuchPaddingException e) {
-            throw new IllegalArgumentException("Wrong padding?", e);
-        } catch (final InvalidKeyException e) {
-            throw new IllegalArgumentException("Bad key?", e);
-        } catch (final IllegalBlockSizeException e) {
-            throw new IllegalArgumentException("Bad block size?", e);
-        } catch (final BadPaddingException e) {
-            throw new IllegalArgumentException("Bad padding?", e);
-        } catch (final ShortBufferException e) {
-            throw new IllegalArgumentException("Cipher buffer too short?", e);
-        }
-        
-        final byte[] version = new byte[] {1};
-        
-        final byte[] intBytes = intToByteArray(written);
-        final byte[] length = new byte[]{intBytes[2], intBytes[3]};
-        
-        final Mac mac;
-        try {
-            mac = Mac.getInstance("hmacSHA256");
-            mac.init(skeySpec);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("No HMAC 256?", e);
-        } catch (final InvalidKeyException e) {
-            throw new IllegalArgumentException("Bad key?", e);
-        }
-
-        final byte[] cipherBytes = new byte[written];
-        System.arraycopy(cipherTextBytes, 0, cipherBytes, 0, cipherBytes.length);
-        
-        mac.update(version);
-        mac.update(length);
-        mac.update(cipherBytes);
-        final byte[] rawMac = mac.doFinal();
-
-        final byte[] full = 
-            CommonUtils.combine(version, length, cipherBytes, rawMac);
-        return full;
+        return codecFor(key).encodeSingleMessage(data, off, len);
+    }
+    
+    /**
+     * Encodes all remaining bytes of the source buffer into the destination
+     * buffer without allocating any intermediate arrays.
+     * 
+     * @param key The key to encode with.
+     * @param src The plain text to encode.
+     * @param dst The buffer to write the encoded records to.
+     * @return The number of bytes written to the destination.
+     * @see RecordCodec#encodeInto(ByteBuffer, ByteBuffer)
+     */
+    public static int encodeInto(final byte[] key, final ByteBuffer src, 
+        final ByteBuffer dst) {
+        return codecFor(key).encodeInto(src, dst);
+    }
+    
+    /**
+     * Decodes all complete records in the source buffer into the destination
+     * buffer without allocating any intermediate arrays.
+     * 
+     * @param key The key to decode with.
+     * @param src The encoded records.
+     * @param dst The buffer to write the plain text to.
+     * @return The number of plain text bytes written to the destination.
+     * @see RecordCodec#decodeInto(ByteBuffer, ByteBuffer)
+     */
+    public static int decodeInto(final byte[] key, final ByteBuffer src, 
+        final ByteBuffer dst) {
+        return codecFor(key).decodeInto(src, dst);
     }
     
     public static byte[] decodeAllMessages(final byte[] key, final byte[] msgs){
-        final Collection<byte[]> allDecoded = new ArrayList<byte[]>();
-        final AtomicInteger offset = new AtomicInteger(0);
-        while (offset.get() < msgs.length) {
-            final byte[] decoded = decodeSingleMessage(key, msgs, offset);
-            allDecoded.add(decoded);
+        // Decode everything into one array in a single pass. Plain text is
+        // never longer than its record unless the record is compressed, in
+        // which case we grow the array.
+        final RecordCodec codec = codecFor(key);
+        final ByteBuffer src = ByteBuffer.wrap(msgs);
+        ByteBuffer dst = ByteBuffer.allocate(msgs.length);
+        while (true) {
+            codec.decodeInto(src, dst);
+            if (!src.hasRemaining()) {
+                break;
+            }
+            if (dst.remaining() >= codec.maxRecordLength()) {
+                // There's room for any record, so it must be cut off.
+                throw new IllegalArgumentException("Data ended mid-record");
+            }
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+                dst.capacity() * 2, dst.position() + codec.maxRecordLength()));
+            dst.flip();
+            bigger.put(dst);
+            dst = bigger;
         }
-        return CommonUtils.combine(allDecoded);
+        if (dst.position() == dst.capacity()) {
+            return dst.array();
+        }
+        return Arrays.copyOf(dst.array(), dst.position());
+    }
+    
+    /**
+     * Decodes all the records in the specified stream, writing the plain 
+     * text of each record as soon as it's verified so memory use doesn't
+     * grow with the size of the data.
+     * 
+     * @param key The key to decrypt with.
+     * @param is The stream of encoded records.
+     * @param os The stream to write plain text to.
+     * @return The number of plain text bytes written.
+     * @throws IOException If there's an error reading or writing.
+     */
+    public static long decodeAllMessages(final byte[] key, 
+        final InputStream is, final OutputStream os) throws IOException {
+        return new StreamingRecordDecoder(codecFor(key)).decode(is, os);
     }
     
     public static byte[] decodeSingleMessage(final byte[] key, final byte[] msg) {
@@ -412,72 +477,7 @@ public class CommonUtils {
 
     public static byte[] decodeSingleMessage(final byte[] key, 
         final byte[] msg, final AtomicInteger atomicOffset) {
-        /*
-         0                   1                   2                   3
-         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
-        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-        |    Version    |         Message Length        |               
-        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-        |                                                               |
-        |                        Message (N bytes)                      |
-        |                                                               |
-        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-        |                          MAC (N bytes)                        |
-        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-        */
-        final int offset = atomicOffset.get();
-        // This needs to be an int even though it's two bytes because shorts
-        // are signed
-        final int size = 
-            unsignedShortToInt(new byte[] {msg[offset+1], msg[offset+2]});
-        final int newOffset = offset+3+size+32;
-        atomicOffset.set(newOffset);
-        final byte[] rawMac = Arrays.copyOfRange(msg, offset+3+size, newOffset);
-        
-        final SecretKeySpec skeySpec = new SecretKeySpec(key, "AES");
-        final Cipher cipher;
-        final byte[] plainText = new byte[size];
-        final int bytesInOutput;
-        try {
-            cipher = Cipher.getInstance(DEFAULT_CIPHER);
-            cipher.init(Cipher.DECRYPT_MODE, skeySpec);
-            bytesInOutput = cipher.doFinal(msg, offset+3, size, plainText);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("No AES?", e);
-        } catch (final NoSuchPaddingException e) {
-            throw new IllegalArgumentException("No padding?", e);
-        } catch (final InvalidKeyException e) {
-            throw new IllegalArgumentException("Bad key?", e);
-        } catch (final IllegalBlockSizeException e) {
-            throw new IllegalArgumentException("Bad block size?", e);
-        } catch (final BadPaddingException e) {
-            throw new IllegalArgumentException("Bad padding?", e);
-        } catch (final ShortBufferException e) {
-            throw new IllegalArgumentException("Buffer too short?", e);
-        }
-        
-        // Does the mac include the length and the version? Probably.
-        final Mac mac256;
-        try {
-            mac256 = Mac.getInstance("hmacSHA256");
-            mac256.init(skeySpec);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("No hmacSHA256?", e);
-        } catch (final InvalidKeyException e) {
-            throw new IllegalArgumentException("Bad key?", e);
-        }
-        mac256.update(msg, offset, 3+size);
-        final byte[] mac = mac256.doFinal();
-
-        // Now make sure the MACs match.
-        if (!Arrays.equals(mac, rawMac)) {
-            LOG.error("MACs don't match!!");
-            throw new IllegalArgumentException("Macs don't match!!");
-        }
-        if (bytesInOutput != plainText.length) {
-            return Arrays.copyOf(plainText, bytesInOutput);
-        }
-        return plainText;
+        return codecFor(key).decodeSingleMessage(msg, atomicOffset);
     }
 
     public static byte[] generateKey() {
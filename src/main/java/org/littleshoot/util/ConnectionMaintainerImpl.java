@@ -6,6 +6,9 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +22,12 @@ import org.slf4j.LoggerFactory;
  */
 public final class ConnectionMaintainerImpl<T, ServerT> implements
         ConnectionMaintainer<ServerT> {
+    /**
+     * The default maximum number of connection attempts to have outstanding
+     * at once.
+     */
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+
     /**
      * The log for this class.
      */
@@ -60,6 +69,11 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
      */
     private final int m_minNumConnected;
 
+    /**
+     * The maximum number of connection attempts to have outstanding at once.
+     */
+    private final int m_maxParallel;
+
     /**
      * The mapping of server identifiers to the actual servers to which the
      * connection was made.
@@ -71,6 +85,12 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
      */
     private final Thread m_thread;
 
+    /**
+     * The threads that run connection attempts, so that several attempts
+     * can wait on the network at once.
+     */
+    private final ExecutorService m_establishers;
+
     /**
      * The number of servers with which we are connected.
      */
@@ -113,6 +133,33 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
             final ConnectionEstablisher<T, ServerT> establisher,
             final CandidateProvider<T> candidateProvider,
             final int minNumConnected) {
+        this(establisher, candidateProvider, minNumConnected,
+                DEFAULT_MAX_PARALLEL);
+    }
+
+    /**
+     * Constructs a new connection maintainer that makes up to the specified
+     * number of connection attempts at once when it's below its minimum.
+     * 
+     * @param establisher
+     *            The object used to establish connections.
+     * @param candidateProvider
+     *            The object that provides candidate servers with which to try
+     *            establishing connections.
+     * @param minNumConnected
+     *            The minimum number of connections to maintain.
+     * @param maxParallel
+     *            The maximum number of connection attempts to have
+     *            outstanding at once.
+     */
+    public ConnectionMaintainerImpl(
+            final ConnectionEstablisher<T, ServerT> establisher,
+            final CandidateProvider<T> candidateProvider,
+            final int minNumConnected, final int maxParallel) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("Bad max parallel: "
+                    + maxParallel);
+        }
         m_collectionUtils = new CollectionUtilsImpl();
         m_establisher = establisher;
         m_candidateProvider = candidateProvider;
@@ -120,6 +167,7 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
         m_serverIdsToTry = new LinkedList<T>();
         m_usedServerIds = new LinkedList<T>();
         m_minNumConnected = minNumConnected;
+        m_maxParallel = maxParallel;
         m_idMap = new HashMap<T, ServerT>();
 
         final Runnable runner = new ConnectionRunner();
@@ -129,6 +177,8 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
 
         m_thread = new Thread(runner, threadName);
         m_thread.setDaemon(true);
+        m_establishers = Executors.newCachedThreadPool(
+                new DaemonThreadFactory(threadName));
 
         m_numConnected = 0;
         m_outstanding = 0;
@@ -155,7 +205,7 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
         public void run() {
             while (true) {
                 synchronized (ConnectionMaintainerImpl.this) {
-                    while (!getShouldTryAnother()) {
+                    while (!getShouldTryAnother() || !getCanTryAnother()) {
                         LOG.debug("Waiting to try another");
                         ThreadUtils.safeWait(ConnectionMaintainerImpl.this);
                     }
@@ -190,6 +240,13 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
          */
         private final T m_serverId;
 
+        /**
+         * Whether we have already heard how the connection attempt went. We
+         * only count the first outcome, so an establisher that reports an
+         * outcome twice can't throw off the number of outstanding attempts.
+         */
+        private final AtomicBoolean m_settled = new AtomicBoolean(false);
+
         /**
          * Constructs a new listener.
          * 
@@ -203,6 +260,10 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
 
         public void connected(final ServerT server) {
             LOG.debug("Got connected: " + m_serverId);
+            if (!m_settled.compareAndSet(false, true)) {
+                LOG.warn("Attempt already settled for: " + m_serverId);
+                return;
+            }
             synchronized (ConnectionMaintainerImpl.this) {
                 --m_outstanding;
                 ++m_numConnected;
@@ -214,12 +275,26 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
             m_mostRecentlyActiveId = m_serverId;
         }
 
+        /**
+         * Returns whether we have already heard how the connection attempt
+         * went.
+         * 
+         * @return Whether the connection attempt has settled.
+         */
+        private boolean isSettled() {
+            return m_settled.get();
+        }
+
         public void reconnected() {
             m_mostRecentlyActiveId = m_serverId;
         }
 
         public void connectionFailed() {
             LOG.debug("Got connectionFailed: " + m_serverId);
+            if (!m_settled.compareAndSet(false, true)) {
+                LOG.debug("Attempt already settled for: " + m_serverId);
+                return;
+            }
 
             synchronized (ConnectionMaintainerImpl.this) {
                 --m_outstanding;
@@ -370,8 +445,7 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
 
         // We create a listener that will be notified of activity on this
         // connection.
-        final ConnectionMaintainerListener<ServerT> listener = new MyListener(
-                serverId);
+        final MyListener listener = new MyListener(serverId);
 
         synchronized (this) {
             // Until we see a response from this attempt to establish a
@@ -382,7 +456,27 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
             m_usedServerIds.add(serverId);
         }
 
-        m_establisher.establish(serverId, listener);
+        // Establishing a connection can block, so we do it on another thread
+        // and go straight on to the next attempt if we are still short of
+        // connections.
+        m_establishers.execute(new Runnable() {
+            public void run() {
+                try {
+                    m_establisher.establish(serverId, listener);
+                } catch (final RuntimeException runtimeException) {
+                    // This could be a Spring runtime exception connecting
+                    // to Hessian, for example. Unless the establisher told
+                    // us how the attempt went before throwing, we count it
+                    // as a failed attempt so that we do not wait on it
+                    // forever.
+                    LOG.warn("Exception while trying to connect",
+                            runtimeException);
+                    if (!listener.isSettled()) {
+                        listener.connectionFailed();
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -414,6 +508,26 @@ public final class ConnectionMaintainerImpl<T, ServerT> implements
         return ((m_outstanding + m_numConnected) < m_minNumConnected);
     }
 
+    /**
+     * Returns the number of outstanding connection attempts.
+     * 
+     * @return The number of outstanding connection attempts.
+     */
+    synchronized int getOutstanding() {
+        return m_outstanding;
+    }
+
+    /**
+     * Returns whether we have room for another outstanding connection
+     * attempt.
+     * 
+     * @return Whether we have room for another outstanding connection
+     *         attempt.
+     */
+    private synchronized boolean getCanTryAnother() {
+        return (m_outstanding < m_maxParallel);
+    }
+
     /**
      * Tries connecting to a server. This method is called when we need to try
      * to establish a connection to a server.
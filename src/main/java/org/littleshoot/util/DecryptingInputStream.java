@@ -18,13 +18,22 @@ public class DecryptingInputStream extends InputStream {
     
     private final byte[] oneByte = new byte[1];
 
-    private final byte[] readKey;
+    private final RecordCodec codec;
 
     private final InputStream inputStream;
     
-    private ByteBuffer lastBuffer;
+    /**
+     * Reusable buffer for raw data from the wrapped stream. This holds up to
+     * a full maximum-size record so we read in large chunks.
+     */
+    private final byte[] receiveBytes;
     
-    private InputRecord currentRecord;
+    private final ByteBuffer receive;
+    
+    /**
+     * The record we're reading, which is reset and reused for every record.
+     */
+    private final InputRecord currentRecord;
 
     /**
      * Creates a new stream that decrypts data from the encapsulated stream.
@@ -34,9 +43,25 @@ public class DecryptingInputStream extends InputStream {
      */
     public DecryptingInputStream(final byte[] readKey, 
         final InputStream inputStream) {
-        this.readKey = readKey;
+        this(new RecordCodec(readKey), inputStream);
+    }
+
+    /**
+     * Creates a new stream that decrypts data from the encapsulated stream
+     * using the specified codec.
+     * 
+     * @param codec The codec to decrypt with.
+     * @param inputStream The wrapped {@link InputStream}.
+     */
+    public DecryptingInputStream(final RecordCodec codec, 
+        final InputStream inputStream) {
+        this.codec = codec;
         this.inputStream = inputStream;
-        currentRecord = new InputRecord(readKey);
+        this.currentRecord = new InputRecord(codec);
+        this.receiveBytes = 
+            new byte[this.codec.encodedLength(CommonUtils.SIZE_LIMIT)];
+        this.receive = ByteBuffer.wrap(receiveBytes);
+        this.receive.limit(0);
     }
 
     /**
@@ -62,26 +87,32 @@ public class DecryptingInputStream extends InputStream {
     @Override
     public synchronized int read(final byte buf[], final int off, final int len)
             throws IOException {
-        while (this.currentRecord.needsData()) {
-            final byte[] data = new byte[len];
-            final int read = this.inputStream.read(data);
-            if (read == -1) {
-                return read;
-            }
-            lastBuffer = ByteBuffer.wrap(data, 0, read);
-            this.currentRecord.addData(lastBuffer);
+        if (len == 0) {
+            return 0;
         }
-        final int bytesRead = this.currentRecord.drainData(buf, off, len);
-        if (!this.currentRecord.hasMoreData()) {
-            LOG.info("Resetting app record");
-            this.currentRecord = new InputRecord(readKey);
-            if (lastBuffer != null) {
-                this.currentRecord.addData(lastBuffer);
-            } else {
-                LOG.warn("No existing buffer?");
+        while (true) {
+            while (this.currentRecord.needsData()) {
+                if (!this.receive.hasRemaining()) {
+                    final int read = this.inputStream.read(receiveBytes, 0, 
+                        receiveBytes.length);
+                    if (read == -1) {
+                        return read;
+                    }
+                    this.receive.clear();
+                    this.receive.limit(read);
+                }
+                this.currentRecord.addData(this.receive);
+            }
+            final int bytesRead = this.currentRecord.drainData(buf, off, len);
+            if (!this.currentRecord.hasMoreData()) {
+                LOG.debug("Resetting app record");
+                this.currentRecord.reset();
+            }
+            // Keep going on empty records so we never return 0.
+            if (bytesRead > 0) {
+                return bytesRead;
             }
         }
-        return bytesRead;
     }
 
     @Override
@@ -0,0 +1,118 @@
+package org.littleshoot.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed pool of equally sized direct buffers carved out of a single slab
+ * of native memory. The slab is allocated once, so the pool's footprint is
+ * known up front no matter how many callers share it, and data moved
+ * through these buffers between channels is never copied onto the heap.
+ * <p>
+ * Buffers are handed out cleared, and have to be given back with
+ * {@link #release(ByteBuffer)} once the caller is done with them. This
+ * class is thread safe.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+
+    private final int capacity;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize The size of each buffer.
+     * @param buffers The number of buffers in the pool.
+     */
+    public DirectBufferPool(final int bufferSize, final int buffers) {
+        if (bufferSize < 1 || buffers < 1) {
+            throw new IllegalArgumentException("Bad pool size: " +
+                buffers + " buffers of " + bufferSize);
+        }
+        if ((long) bufferSize * buffers > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Pool too big: " +
+                buffers + " buffers of " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = buffers;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        final ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * buffers);
+        for (int i = 0; i < buffers; i++) {
+            slab.limit((i + 1) * bufferSize);
+            slab.position(i * bufferSize);
+            this.free.add(slab.slice());
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool if there's one free.
+     *
+     * @return The buffer, or <code>null</code> if they're all in use.
+     */
+    public ByteBuffer tryAcquire() {
+        return this.free.poll();
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting for one to be released if
+     * they're all in use.
+     *
+     * @return The buffer.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        return this.free.take();
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not touch it again.
+     *
+     * @param buf The buffer, which must have come from this pool.
+     */
+    public void release(final ByteBuffer buf) {
+        if (!buf.isDirect() || buf.capacity() != this.bufferSize) {
+            throw new IllegalArgumentException("Not one of our buffers");
+        }
+        buf.clear();
+        if (!this.free.offer(buf)) {
+            throw new IllegalStateException("Buffer released twice?");
+        }
+    }
+
+    /**
+     * Accessor for the size of each buffer.
+     *
+     * @return The size of each buffer.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Accessor for the number of buffers in the pool.
+     *
+     * @return The number of buffers in the pool.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns how many buffers are free right now.
+     *
+     * @return The number of free buffers.
+     */
+    public int available() {
+        return this.free.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DirectBufferPool [bufferSize=" + bufferSize + ", capacity=" +
+            capacity + ", available=" + available() + "]";
+    }
+}
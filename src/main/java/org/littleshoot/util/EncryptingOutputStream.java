@@ -2,59 +2,244 @@ package org.littleshoot.util;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * An output stream that write encrypted records whose integrity is verified
- * with a SHA-256 MAC.
+ * An output stream that writes authenticated, encrypted records in the
+ * format of its {@link RecordCodec}. {@link RecordCodec#VERSION_HMAC}
+ * records, the default, are AES encrypted and carry a SHA-256 MAC, while
+ * {@link RecordCodec#VERSION_GCM} records are AES-GCM encrypted and
+ * authenticated by their GCM tag.
+ * <p>
+ * By default every write is sent immediately as its own record. In buffered
+ * mode writes are gathered into records of up to the linger threshold, and
+ * records are only emitted when the threshold is reached or on
+ * {@link #flush()} or {@link #close()}. For chatty protocols that saves a
+ * header on each write, plus the padding and MAC of version 1 records or
+ * the nonce and tag of version 2 records, but callers must flush.
+ * <p>
+ * Streams created with a {@link ParallelRecordEncoder} encrypt the records
+ * of large writes in parallel, which helps bulk transfers of big blocks.
+ * They don't buffer, so every write is still sent immediately.
  */
 public class EncryptingOutputStream extends OutputStream {
 
-    private static final Logger LOG = 
+    private static final Logger LOG =
         LoggerFactory.getLogger(EncryptingOutputStream.class);
-    
+
+    /**
+     * The largest linger threshold, i.e. the largest record we'll gather,
+     * unless the codec writes bigger jumbo records.
+     */
+    public static final int MAX_LINGER_THRESHOLD = CommonUtils.SIZE_LIMIT;
+
+    /**
+     * Writes at least this big go through the parallel encoder, if any.
+     */
+    private static final int PARALLEL_THRESHOLD = 4 * CommonUtils.SIZE_LIMIT;
+
     private final OutputStream os;
-    private final byte[] key;
+    private final RecordCodec codec;
 
     /**
-     * Creates a new encrypting output stream that uses the specified key. 
-     * 
+     * The encoder for large writes, or <code>null</code> if we encode
+     * everything on the writing thread.
+     */
+    private final ParallelRecordEncoder parallel;
+
+    /**
+     * The plain text gathered for the next record, or <code>null</code> if
+     * we're not buffering.
+     */
+    private final byte[] pending;
+
+    private int pendingCount = 0;
+
+    private final int lingerThreshold;
+
+    /**
+     * Reusable buffer for encoded records in buffered mode.
+     */
+    private final ByteBuffer encoded;
+
+    /**
+     * Creates a new encrypting output stream that uses the specified key.
+     *
      * @param key The key to encrypt with.
      * @param os The {@link OutputStream} to wrap.
      */
     public EncryptingOutputStream(final byte[] key, final OutputStream os) {
-        this.key = key;
+        this(new RecordCodec(key), os);
+    }
+
+    /**
+     * Creates a new encrypting output stream that uses the specified codec,
+     * for example to write a different record version.
+     *
+     * @param codec The codec to encrypt with.
+     * @param os The {@link OutputStream} to wrap.
+     */
+    public EncryptingOutputStream(final RecordCodec codec,
+        final OutputStream os) {
+        this.codec = codec;
         this.os = os;
+        this.parallel = null;
+        this.pending = null;
+        this.lingerThreshold = 0;
+        this.encoded = null;
     }
 
     /**
-     * Write the data out, NOW.
+     * Creates a new encrypting output stream that encrypts large writes in
+     * parallel with the specified encoder. Every write is sent immediately.
+     *
+     * @param parallel The parallel encoder to encrypt with.
+     * @param os The {@link OutputStream} to wrap.
+     */
+    public EncryptingOutputStream(final ParallelRecordEncoder parallel,
+        final OutputStream os) {
+        this.codec = parallel.newCodec();
+        this.os = os;
+        this.parallel = parallel;
+        this.pending = null;
+        this.lingerThreshold = 0;
+        this.encoded = null;
+    }
+
+    /**
+     * Creates a new buffered encrypting output stream that uses the
+     * specified key. Written data is gathered until the linger threshold is
+     * reached or the stream is flushed or closed.
+     *
+     * @param key The key to encrypt with.
+     * @param os The {@link OutputStream} to wrap.
+     * @param lingerThreshold The number of buffered bytes at which we emit a
+     * record without waiting for a flush, up to
+     * {@link #MAX_LINGER_THRESHOLD}.
+     */
+    public EncryptingOutputStream(final byte[] key, final OutputStream os,
+        final int lingerThreshold) {
+        this(new RecordCodec(key), os, lingerThreshold);
+    }
+
+    /**
+     * Creates a new buffered encrypting output stream that uses the
+     * specified codec.
+     *
+     * @param codec The codec to encrypt with.
+     * @param os The {@link OutputStream} to wrap.
+     * @param lingerThreshold The number of buffered bytes at which we emit a
+     * record without waiting for a flush, up to
+     * {@link #MAX_LINGER_THRESHOLD} or the codec's maximum record size if
+     * that's bigger.
+     */
+    public EncryptingOutputStream(final RecordCodec codec,
+        final OutputStream os, final int lingerThreshold) {
+        if (lingerThreshold < 1 || lingerThreshold > 
+            Math.max(MAX_LINGER_THRESHOLD, codec.getMaxRecordSize())) {
+            throw new IllegalArgumentException("Bad linger threshold: "+
+                lingerThreshold);
+        }
+        this.codec = codec;
+        this.os = os;
+        this.parallel = null;
+        this.pending = new byte[lingerThreshold];
+        this.lingerThreshold = lingerThreshold;
+        this.encoded =
+            ByteBuffer.allocate(this.codec.encodedLength(lingerThreshold));
+    }
+
+    /**
+     * Write the data out, NOW, unless we're buffering.
      */
     @Override
-    synchronized public void write(final byte data[], final int off, 
+    synchronized public void write(final byte data[], final int off,
         final int len) throws IOException {
-        
-        // TODO: Ideally we'd make sure to fill up each message as much as
-        // we can, but this will work for now!
-        final byte[] encoded = CommonUtils.encode(this.key, data, off, len);
-        os.write(encoded);
+        if (this.parallel != null && len >= PARALLEL_THRESHOLD) {
+            this.parallel.encodeTo(data, off, len, os);
+            return;
+        }
+        if (this.pending == null) {
+            final byte[] encodedBytes = this.codec.encode(data, off, len);
+            os.write(encodedBytes);
+            return;
+        }
+        int index = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (this.pendingCount == 0 && remaining >= this.lingerThreshold) {
+                // Skip the copy for full records.
+                writeRecord(data, index, this.lingerThreshold);
+                index += this.lingerThreshold;
+                remaining -= this.lingerThreshold;
+                continue;
+            }
+            final int toCopy =
+                Math.min(remaining, this.lingerThreshold - this.pendingCount);
+            System.arraycopy(data, index, this.pending, this.pendingCount,
+                toCopy);
+            this.pendingCount += toCopy;
+            index += toCopy;
+            remaining -= toCopy;
+            if (this.pendingCount == this.lingerThreshold) {
+                writePending();
+            }
+        }
     }
 
     /**
-     * Write one byte now.
+     * Write one byte now, unless we're buffering.
      */
     @Override
     synchronized public void write(final int i) throws IOException {
-        write(new byte[] {(byte)i}, 0, 1);
+        if (this.pending == null) {
+            write(new byte[] {(byte)i}, 0, 1);
+            return;
+        }
+        this.pending[this.pendingCount++] = (byte) i;
+        if (this.pendingCount == this.lingerThreshold) {
+            writePending();
+        }
+    }
+
+    /**
+     * Emits any buffered data as a record and flushes the wrapped stream.
+     */
+    @Override
+    synchronized public void flush() throws IOException {
+        writePending();
+        this.os.flush();
     }
 
     @Override
     public void close() throws IOException {
         LOG.info("CLOSING OUTPUT STREAM");
-        this.os.close();
+        try {
+            synchronized (this) {
+                writePending();
+            }
+        } finally {
+            this.os.close();
+        }
     }
 
-    // inherit no-op flush()
+    private void writePending() throws IOException {
+        if (this.pendingCount == 0) {
+            return;
+        }
+        final int count = this.pendingCount;
+        this.pendingCount = 0;
+        writeRecord(this.pending, 0, count);
+    }
+
+    private void writeRecord(final byte[] data, final int off, final int len)
+        throws IOException {
+        this.encoded.clear();
+        final int written =
+            this.codec.encodeInto(ByteBuffer.wrap(data, off, len), encoded);
+        this.os.write(this.encoded.array(), 0, written);
+    }
 }
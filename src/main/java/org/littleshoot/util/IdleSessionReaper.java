@@ -0,0 +1,249 @@
+package org.littleshoot.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes relay sessions that have gone idle, using a single hashed wheel
+ * timer for all of them instead of a blocking read timeout per socket.
+ * <p>
+ * Relaying data only updates a session's last activity time, so traffic
+ * costs nothing extra here. Each session sits in the wheel slot for the
+ * earliest time it could have gone idle. When the wheel reaches that slot
+ * we look at the session's activity again, kill it if it really is idle,
+ * and otherwise move it to the slot for its new deadline. Adding a session
+ * and checking it are both constant time.
+ * <p>
+ * There are separate timeouts for data from the external socket, data to
+ * the external socket, and data either way. A session is killed as soon as
+ * any enabled timeout passes. Note a download only sends data to the
+ * external socket, so the "in" timeout would kill it once the request is
+ * sent. This class is thread safe.
+ */
+public class IdleSessionReaper {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(IdleSessionReaper.class);
+
+    private final long tickMillis;
+
+    private final List<List<Timeout>> wheel;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    private final ScheduledExecutorService ticker =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("IdleSessionReaper"));
+
+    private volatile long inTimeout;
+
+    private volatile long outTimeout;
+
+    private volatile long idleTimeout;
+
+    /**
+     * The number of ticks so far. Only touched on the ticker thread.
+     */
+    private long tick = 0;
+
+    /**
+     * Creates a new reaper that checks once a second, killing sessions
+     * that relay nothing either way for the specified time.
+     *
+     * @param idleTimeout How long a session can be idle, in milliseconds.
+     */
+    public IdleSessionReaper(final long idleTimeout) {
+        this(1000, 512);
+        setTimeouts(0, 0, idleTimeout);
+    }
+
+    /**
+     * Creates a new reaper with no timeouts set.
+     *
+     * @param tickMillis How often to advance the wheel. Sessions are killed
+     * up to this long after their timeout.
+     * @param wheelSize The number of slots in the wheel. Timeouts longer
+     * than the wheel's span still work, but sessions with them are looked
+     * at once per turn of the wheel.
+     */
+    public IdleSessionReaper(final long tickMillis, final int wheelSize) {
+        if (tickMillis < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("Bad wheel: " + wheelSize +
+                " slots of " + tickMillis + "ms");
+        }
+        this.tickMillis = tickMillis;
+        this.wheel = new ArrayList<List<Timeout>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            this.wheel.add(new ArrayList<Timeout>());
+        }
+        this.ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (final Throwable t) {
+                    LOG.error("Error reaping sessions", t);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the idle timeouts, in milliseconds, where zero disables a
+     * timeout. These apply to sessions already being watched the next time
+     * they're checked.
+     *
+     * @param inTimeout How long a session can go without data from the
+     * external socket.
+     * @param outTimeout How long a session can go without data to the
+     * external socket.
+     * @param idleTimeout How long a session can go without data either way.
+     */
+    public void setTimeouts(final long inTimeout, final long outTimeout,
+        final long idleTimeout) {
+        this.inTimeout = inTimeout;
+        this.outTimeout = outTimeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Starts watching a session. Sessions stop being watched once they're
+     * finished or killed.
+     *
+     * @param session The session to watch.
+     */
+    public void add(final RelaySession session) {
+        this.added.add(new Timeout(session));
+        this.sessionCount.incrementAndGet();
+    }
+
+    /**
+     * Returns how many sessions we're watching.
+     *
+     * @return The number of sessions.
+     */
+    public int getSessionCount() {
+        return this.sessionCount.get();
+    }
+
+    /**
+     * Stops the timer. Sessions aren't affected.
+     */
+    public void stop() {
+        this.ticker.shutdownNow();
+    }
+
+    private void tick() {
+        final long now = System.currentTimeMillis();
+        Timeout timeout;
+        while ((timeout = this.added.poll()) != null) {
+            schedule(timeout, now);
+        }
+        final List<Timeout> slot =
+            this.wheel.get((int) (this.tick % this.wheel.size()));
+        this.tick++;
+        if (slot.isEmpty()) {
+            return;
+        }
+        // Take the slot's sessions first, as rescheduling might put them
+        // back in the same slot a whole turn later.
+        final List<Timeout> due = new ArrayList<Timeout>();
+        final Iterator<Timeout> iter = slot.iterator();
+        while (iter.hasNext()) {
+            timeout = iter.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                due.add(timeout);
+                iter.remove();
+            }
+        }
+        for (final Timeout t : due) {
+            check(t, now);
+        }
+    }
+
+    private void check(final Timeout timeout, final long now) {
+        final RelaySession session = timeout.session;
+        if (session.isFinished()) {
+            this.sessionCount.decrementAndGet();
+            return;
+        }
+        if (deadline(session) <= now) {
+            LOG.debug("Killing idle {}", session);
+            this.sessionCount.decrementAndGet();
+            session.kill();
+            session.finished();
+            return;
+        }
+        schedule(timeout, now);
+    }
+
+    private void schedule(final Timeout timeout, final long now) {
+        final long deadline = deadline(timeout.session);
+        final long ticks;
+        if (deadline == Long.MAX_VALUE) {
+            // No timeouts right now, so check back once a turn in case
+            // that changes.
+            ticks = this.wheel.size();
+        } else {
+            ticks = Math.max(1,
+                (deadline - now + this.tickMillis - 1) / this.tickMillis);
+        }
+        // The slot for the current tick was already taken.
+        final long target = this.tick + ticks - 1;
+        timeout.rounds = (ticks - 1) / this.wheel.size();
+        this.wheel.get((int) (target % this.wheel.size())).add(timeout);
+    }
+
+    /**
+     * Returns when the session goes idle under the current timeouts,
+     * assuming no more activity.
+     */
+    private long deadline(final RelaySession session) {
+        final long lastIn = session.getLastInActivity();
+        final long lastOut = session.getLastOutActivity();
+        long deadline = Long.MAX_VALUE;
+        final long in = this.inTimeout;
+        if (in > 0) {
+            deadline = Math.min(deadline, lastIn + in);
+        }
+        final long out = this.outTimeout;
+        if (out > 0) {
+            deadline = Math.min(deadline, lastOut + out);
+        }
+        final long idle = this.idleTimeout;
+        if (idle > 0) {
+            deadline = Math.min(deadline, Math.max(lastIn, lastOut) + idle);
+        }
+        return deadline;
+    }
+
+    /**
+     * A session's place in the wheel.
+     */
+    private static final class Timeout {
+
+        private final RelaySession session;
+
+        /**
+         * The number of turns of the wheel to wait before checking.
+         */
+        private long rounds;
+
+        private Timeout(final RelaySession session) {
+            this.session = session;
+        }
+    }
+}
@@ -1,18 +1,7 @@
 package org.littleshoot.util;
 
 import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.apache.commons.codec.binary.Base64;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,23 +13,35 @@ public class InputRecord {
     private static final Logger log = 
         LoggerFactory.getLogger(InputRecord.class);
     
-    private static final int MAC_SIZE = 32;
-
-    private int size = -1;
+    private static final int HEADER_SIZE = RecordCodec.HEADER_SIZE;
 
-    private final byte[] readKey;
+    private final RecordCodec codec;
 
-    private byte[] headerBytes = new byte[3];
+    /**
+     * The whole record: header, message and any MAC. This is reused across
+     * records and only grows when a record is bigger than any we've seen.
+     * Jumbo records grow it as their data arrives rather than all at once.
+     */
+    private byte[] recordBytes = new byte[RecordCodec.JUMBO_HEADER_SIZE];
     
-    private final ByteBuffer header = ByteBuffer.wrap(headerBytes);
+    private ByteBuffer record = ByteBuffer.wrap(recordBytes);
     
-    private ByteBuffer curBuffer = header;
+    private boolean readHeader = false;
 
-    private byte[] bodyBytes;
+    private int recordSize;
 
     private boolean needsData = true;
 
-    private byte[] plainText;
+    private boolean decrypted = false;
+
+    /**
+     * Plain text for records drained in pieces. Reused like the record.
+     */
+    private byte[] plainText = new byte[0];
+    
+    private ByteBuffer plainBuffer = ByteBuffer.wrap(plainText);
+    
+    private int plainLength = 0;
     
     private int drainedIndex = 0;
     
@@ -51,11 +52,27 @@ public class InputRecord {
      * @param readKey The key to decode data with.
      */
     public InputRecord(final byte[] readKey) {
+        this(newCodec(readKey));
+    }
+    
+    /**
+     * Creates a new input record that will decode data using the specified
+     * codec. The codec's cipher and MAC are reused, so the codec should be
+     * shared across all the records of a stream.
+     * 
+     * @param codec The codec to decode data with.
+     */
+    public InputRecord(final RecordCodec codec) {
+        this.codec = codec;
+        this.record.limit(HEADER_SIZE);
+    }
+    
+    private static RecordCodec newCodec(final byte[] readKey) {
         if (readKey == null) {
             log.error("Read key can't be null!!");
             throw new NullPointerException("Null read key");
         }
-        this.readKey = readKey;
+        return new RecordCodec(readKey);
     }
 
     public boolean needsData() {
@@ -63,113 +80,124 @@ public class InputRecord {
     }
 
     public void addData(final ByteBuffer bb) {
-        if (curBuffer == header) {
-            copyBytes(curBuffer, bb);
-            if (curBuffer.hasRemaining()) {
+        if (!readHeader) {
+            copyBytes(record, bb);
+            if (record.hasRemaining()) {
                 return;
-            } else {
-                this.size = CommonUtils.unsignedShortToInt(
-                    new byte[]{this.headerBytes[1], this.headerBytes[2]});
-                this.bodyBytes = new byte[size + MAC_SIZE];
-                curBuffer = ByteBuffer.wrap(bodyBytes);
-                copyBytes(curBuffer, bb);
-                if (curBuffer.hasRemaining()) {
+            }
+            final int headerSize = RecordCodec.headerSize(recordBytes[0]);
+            if (record.limit() < headerSize) {
+                // Jumbo records have a longer length field.
+                record.limit(headerSize);
+                copyBytes(record, bb);
+                if (record.hasRemaining()) {
                     return;
-                } else {
-                    decryptAndVerify(curBuffer);
                 }
             }
-        } else {
-            copyBytes(curBuffer, bb);
-            if (curBuffer.hasRemaining()) {
-                return;
-            } else {
-                decryptAndVerify(curBuffer);
+            this.readHeader = true;
+            this.recordSize = RecordCodec.recordSize(recordBytes, 0);
+            if (this.recordSize < headerSize || 
+                this.recordSize > codec.maxRecordLength()) {
+                log.error("Record too big: {}", this.recordSize);
+                throw new IllegalArgumentException("Record too big: "+
+                    this.recordSize);
             }
+            this.record.limit(Math.min(recordSize, recordBytes.length));
         }
-    }
-    
-
-    private void decryptAndVerify(final ByteBuffer bodyAndMac) {
-        
-        final byte[] bodyAndMacBytes = bodyAndMac.array();
-        final byte[] cipherText = new byte[size];
-        
-        System.arraycopy(bodyAndMacBytes, 0, cipherText, 0, cipherText.length);
-        
-        final byte[] rawMac = new byte[32];
-        System.arraycopy(bodyAndMacBytes, cipherText.length, rawMac, 0, rawMac.length);
-        
-        final SecretKeySpec skeySpec = new SecretKeySpec(readKey, "AES");
-        final Cipher cipher;
-        final byte[] plain;
-        try {
-            cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, skeySpec);
-            //cipher.update(cipherText, off, len);
-            //plainText = cipher.doFinal();
-            plain = cipher.doFinal(cipherText);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("No AES?", e);
-        } catch (final NoSuchPaddingException e) {
-            throw new IllegalArgumentException("No padding?", e);
-        } catch (final InvalidKeyException e) {
-            throw new IllegalArgumentException("Bad key? Read key is: "+
-                Base64.encodeBase64String(readKey), e);
-        } catch (final IllegalBlockSizeException e) {
-            throw new IllegalArgumentException("Bad block size?", e);
-        } catch (final BadPaddingException e) {
-            throw new IllegalArgumentException("Bad padding?", e);
+        while (bb.hasRemaining() && record.position() < recordSize) {
+            if (!record.hasRemaining()) {
+                grow();
+            }
+            copyBytes(record, bb);
         }
-
-        // Does the mac include the length and the version? Probably.
-        final Mac mac256;
-        try {
-            mac256 = Mac.getInstance("hmacSHA256");
-            mac256.init(skeySpec);
-        } catch (final NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException("No hmacSHA256?", e);
-        } catch (final InvalidKeyException e) {
-            throw new IllegalArgumentException("Bad key?", e);
+        if (record.position() == recordSize) {
+            this.needsData = false;
         }
+    }
 
-        mac256.update(headerBytes);
-        mac256.update(cipherText);
-        final byte[] mac = mac256.doFinal();
-
-        // Now make sure the MACs match.
-        if (!Arrays.equals(mac, rawMac)) {
-            log.error("MACs don't match!!");
-            log.error("Decrypted: "+new String(plain));
-            log.error("Tried to match original:\n"+
-                CommonUtils.toHex(rawMac)+"\n"+CommonUtils.toHex(mac));
-            throw new IllegalArgumentException("Macs don't match!!");
-        }
-        this.plainText = plain;
-        this.needsData = false;
+    /**
+     * Grows the record buffer, all at once for standard records and by 
+     * doubling for jumbo records so a header alone can't make us allocate
+     * megabytes.
+     */
+    private void grow() {
+        final int newSize = Math.min(recordSize, 
+            Math.max(recordBytes.length * 2, RecordCodec.MAX_RECORD_SIZE));
+        final byte[] newRecord = new byte[newSize];
+        System.arraycopy(recordBytes, 0, newRecord, 0, record.position());
+        final int position = record.position();
+        this.recordBytes = newRecord;
+        this.record = ByteBuffer.wrap(recordBytes);
+        this.record.position(position);
+        this.record.limit(Math.min(recordSize, newSize));
     }
     
+    /**
+     * Drains decrypted data into the specified array. The record is 
+     * decrypted and verified on the first call. If the caller's array has 
+     * room for the full record, we decrypt straight into it.
+     * 
+     * @param buf The array to copy data to.
+     * @param off The offset to start copying at.
+     * @param len The maximum number of bytes to copy.
+     * @return The number of bytes copied.
+     */
     public int drainData(final byte[] buf, final int off, final int len) {
-        final int toCopy;
-        final int remaining = this.plainText.length - drainedIndex;
-        if (remaining > len) {
-            toCopy = len;
-        } else {
-            toCopy = remaining;
+        if (!this.decrypted) {
+            this.decrypted = true;
+            this.record.flip();
+            final int maxPlain = codec.maxPlainLength(recordBytes[0], 
+                RecordCodec.messageLength(recordBytes, 0));
+            if (len >= maxPlain) {
+                this.plainLength = 
+                    codec.decodeRecord(record, ByteBuffer.wrap(buf, off, len));
+                this.drainedIndex = this.plainLength;
+                return this.plainLength;
+            }
+            if (this.plainText.length < maxPlain) {
+                this.plainText = new byte[maxPlain];
+                this.plainBuffer = ByteBuffer.wrap(plainText);
+            }
+            this.plainBuffer.clear();
+            this.plainLength = codec.decodeRecord(record, plainBuffer);
         }
+        final int toCopy = Math.min(len, this.plainLength - drainedIndex);
         System.arraycopy(this.plainText, drainedIndex, buf, off, toCopy);
         drainedIndex += toCopy;
         return toCopy;
     }
 
     public boolean hasMoreData() {
-        final int remaining = this.plainText.length - drainedIndex;
-        return remaining > 0;
+        if (!this.decrypted) {
+            return !this.needsData;
+        }
+        return this.plainLength > drainedIndex;
+    }
+    
+    /**
+     * Resets this record so it can be reused for the next record in the 
+     * stream, keeping its buffers.
+     */
+    public void reset() {
+        this.record.clear();
+        this.record.limit(HEADER_SIZE);
+        this.readHeader = false;
+        this.needsData = true;
+        this.decrypted = false;
+        this.plainLength = 0;
+        this.drainedIndex = 0;
     }
 
-    private void copyBytes(ByteBuffer buf1, ByteBuffer buf2) {
-        while (buf1.hasRemaining() && buf2.hasRemaining()) {
-            buf1.put(buf2.get());
+    private void copyBytes(final ByteBuffer dst, final ByteBuffer src) {
+        final int toCopy = Math.min(dst.remaining(), src.remaining());
+        if (src.hasArray()) {
+            dst.put(src.array(), src.arrayOffset() + src.position(), toCopy);
+            src.position(src.position() + toCopy);
+        } else {
+            final int limit = src.limit();
+            src.limit(src.position() + toCopy);
+            dst.put(src);
+            src.limit(limit);
         }
     }
 
@@ -71,6 +71,37 @@ public final class IoUtils {
         return count;
     }
     
+    /**
+     * Copy bytes from an <code>InputStream</code> to an
+     * <code>OutputStream</code>, no faster than the specified bucket allows.
+     * 
+     * @param is The <code>InputStream</code> to read from
+     * @param os The <code>OutputStream</code> to write to
+     * @param bucket The bucket to take tokens from for each write.
+     * @return the number of bytes copied
+     * @throws NullPointerException if the input or output is <code>null</code>
+     * @throws IOException if an I/O error occurs 
+     */
+    public static long copy(final InputStream is, final OutputStream os,
+            final TokenBucket bucket) throws IOException {
+        if (is == null) {
+            throw new NullPointerException("null input stream.");
+        }
+        if (os == null) {
+            throw new NullPointerException("null output stream.");
+        }
+        final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        long count = 0;
+        int n = 0;
+        while (-1 != (n = is.read(buffer))) {
+            bucket.acquire(n);
+            os.write(buffer, 0, n);
+            count += n;
+        }
+        LOG.trace("Wrote " + count + " bytes.");
+        return count;
+    }
+    
     /** 
      * Copies the {@link InputStream} to the specified {@link OutputStream}
      * for the specified number of bytes or until EOF or exception.
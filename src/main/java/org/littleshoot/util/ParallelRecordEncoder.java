@@ -0,0 +1,205 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encoder that encrypts the records of large buffers in parallel on a
+ * {@link ForkJoinPool}. Every record is independent, and all full records
+ * encode to the same length, so each task writes its records straight into
+ * their final position in the output and the output is always in order.
+ * <p>
+ * Instances are thread safe. Each pool thread uses its own
+ * {@link RecordCodec}.
+ */
+public class ParallelRecordEncoder {
+
+    /**
+     * The number of records each task encodes before we stop splitting.
+     */
+    private static final int RECORDS_PER_TASK = 2;
+
+    /**
+     * The number of records we encode per write in
+     * {@link #encodeTo(byte[], int, int, OutputStream)}, per pool thread.
+     * This bounds the memory we use for huge writes.
+     */
+    private static final int RECORDS_PER_THREAD_PER_BATCH = 4;
+
+    private static ForkJoinPool sharedPool;
+
+    private final byte[] key;
+
+    private final byte version;
+
+    private final ForkJoinPool pool;
+
+    private final RecordCodec lengthCodec;
+
+    private final ThreadLocal<RecordCodec> codecs =
+        new ThreadLocal<RecordCodec>() {
+            @Override
+            protected RecordCodec initialValue() {
+                return new RecordCodec(key, version);
+            }
+        };
+
+    private final int fullRecordLength;
+
+    /**
+     * Creates a new parallel encoder for version 1 records that runs on a
+     * pool shared by all encoders with one thread per core.
+     *
+     * @param key The key to encrypt with.
+     */
+    public ParallelRecordEncoder(final byte[] key) {
+        this(key, RecordCodec.VERSION_HMAC, sharedPool());
+    }
+
+    /**
+     * Creates a new parallel encoder.
+     *
+     * @param key The key to encrypt with.
+     * @param version The version of the records to write.
+     * @param pool The pool to encode on.
+     */
+    public ParallelRecordEncoder(final byte[] key, final byte version,
+        final ForkJoinPool pool) {
+        this.key = key;
+        this.version = version;
+        this.pool = pool;
+        this.lengthCodec = new RecordCodec(key, version);
+        this.fullRecordLength =
+            this.lengthCodec.encodedLength(CommonUtils.SIZE_LIMIT);
+    }
+
+    private static synchronized ForkJoinPool sharedPool() {
+        if (sharedPool == null) {
+            // Fork join worker threads are daemon threads.
+            sharedPool =
+                new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Creates a codec for the same key and version for encoding small writes
+     * on the calling thread.
+     *
+     * @return The new codec.
+     */
+    RecordCodec newCodec() {
+        return new RecordCodec(key, version);
+    }
+
+    /**
+     * Returns the number of bytes the encoded data will take.
+     *
+     * @param len The number of plain text bytes.
+     * @return The number of encoded bytes.
+     */
+    public int encodedLength(final int len) {
+        return this.lengthCodec.encodedLength(len);
+    }
+
+    /**
+     * Encodes the specified data, splitting it into as many records as
+     * necessary and encrypting the records in parallel.
+     *
+     * @param data The data to encode.
+     * @param off The offset within the data to start at.
+     * @param len The number of bytes to encode.
+     * @return The encoded records.
+     */
+    public byte[] encode(final byte[] data, final int off, final int len) {
+        final byte[] out = new byte[encodedLength(len)];
+        encodeInto(data, off, len, out);
+        return out;
+    }
+
+    /**
+     * Encodes the specified data in batches of records, writing each batch
+     * to the stream in order as soon as it's encoded.
+     *
+     * @param data The data to encode.
+     * @param off The offset within the data to start at.
+     * @param len The number of bytes to encode.
+     * @param os The stream to write to.
+     * @throws IOException If there's an error writing to the stream.
+     */
+    public void encodeTo(final byte[] data, final int off, final int len,
+        final OutputStream os) throws IOException {
+        final int batchSize = CommonUtils.SIZE_LIMIT *
+            pool.getParallelism() * RECORDS_PER_THREAD_PER_BATCH;
+        final byte[] out = new byte[encodedLength(Math.min(len, batchSize))];
+        int index = off;
+        final int end = off + len;
+        do {
+            final int size = Math.min(end - index, batchSize);
+            encodeInto(data, index, size, out);
+            os.write(out, 0, encodedLength(size));
+            index += size;
+        } while (index < end);
+    }
+
+    private void encodeInto(final byte[] data, final int off, final int len,
+        final byte[] out) {
+        final int numRecords = Math.max(1,
+            (len + CommonUtils.SIZE_LIMIT - 1) / CommonUtils.SIZE_LIMIT);
+        if (numRecords <= RECORDS_PER_TASK) {
+            // Not worth a trip through the pool.
+            codecs.get().encodeInto(ByteBuffer.wrap(data, off, len),
+                ByteBuffer.wrap(out));
+            return;
+        }
+        pool.invoke(new EncodeTask(data, off, len, out, 0, numRecords));
+    }
+
+    /**
+     * Task that encodes a range of records, splitting it in half until the
+     * range is small.
+     */
+    private class EncodeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int off;
+        private final int len;
+        private final byte[] out;
+        private final int firstRecord;
+        private final int lastRecord;
+
+        private EncodeTask(final byte[] data, final int off, final int len,
+            final byte[] out, final int firstRecord, final int lastRecord) {
+            this.data = data;
+            this.off = off;
+            this.len = len;
+            this.out = out;
+            this.firstRecord = firstRecord;
+            this.lastRecord = lastRecord;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastRecord - firstRecord <= RECORDS_PER_TASK) {
+                final RecordCodec codec = codecs.get();
+                for (int i = firstRecord; i < lastRecord; i++) {
+                    final int start = i * CommonUtils.SIZE_LIMIT;
+                    final int size =
+                        Math.min(len - start, CommonUtils.SIZE_LIMIT);
+                    final int outStart = i * fullRecordLength;
+                    codec.encodeInto(ByteBuffer.wrap(data, off + start, size),
+                        ByteBuffer.wrap(out, outStart, out.length - outStart));
+                }
+                return;
+            }
+            final int middle = (firstRecord + lastRecord) >>> 1;
+            invokeAll(new EncodeTask(data, off, len, out, firstRecord, middle),
+                new EncodeTask(data, off, len, out, middle, lastRecord));
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link InputStream} that decodes encrypted records like
+ * {@link DecryptingInputStream} but reads raw records from the wrapped stream
+ * on a separate thread. While the reading thread verifies and decrypts one
+ * record, the next ones are already coming off the socket.
+ * <p>
+ * Only a fixed number of raw records are buffered, so a slow reader pushes
+ * back on the wrapped stream.
+ */
+public class PipelinedDecryptingInputStream extends InputStream {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PipelinedDecryptingInputStream.class);
+
+    private static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * Marks the end of the stream in the queue of raw records.
+     */
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final byte[] oneByte = new byte[1];
+
+    private final RecordCodec codec;
+
+    private final InputStream inputStream;
+
+    private final BlockingQueue<ByteBuffer> filled;
+
+    private final BlockingQueue<ByteBuffer> free;
+
+    private final Thread readerThread;
+
+    private volatile IOException readError;
+
+    private volatile boolean closed = false;
+
+    private boolean eof = false;
+
+    private byte[] plainBytes;
+
+    private ByteBuffer plain;
+
+    /**
+     * Creates a new pipelined stream that buffers a few raw records.
+     *
+     * @param readKey The key to decrypt with.
+     * @param inputStream The wrapped {@link InputStream}.
+     */
+    public PipelinedDecryptingInputStream(final byte[] readKey,
+        final InputStream inputStream) {
+        this(new RecordCodec(readKey), inputStream, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Creates a new pipelined stream.
+     *
+     * @param codec The codec to decrypt with.
+     * @param inputStream The wrapped {@link InputStream}.
+     * @param depth The number of raw records to buffer ahead of the reader.
+     */
+    public PipelinedDecryptingInputStream(final RecordCodec codec,
+        final InputStream inputStream, final int depth) {
+        this.codec = codec;
+        this.inputStream = inputStream;
+        this.filled = new ArrayBlockingQueue<ByteBuffer>(depth + 1);
+        this.free = new ArrayBlockingQueue<ByteBuffer>(depth);
+        for (int i = 0; i < depth; i++) {
+            this.free.add(ByteBuffer.allocate(RecordCodec.MAX_RECORD_SIZE));
+        }
+        this.plainBytes = new byte[RecordCodec.MAX_RECORD_SIZE];
+        this.plain = ByteBuffer.wrap(plainBytes);
+        this.plain.limit(0);
+        this.readerThread = new DaemonThread(new RecordReader(),
+            "PipelinedDecryptingInputStream-Reader-" + hashCode());
+        this.readerThread.start();
+    }
+
+    @Override
+    public synchronized int read(final byte buf[]) throws IOException {
+        return read(buf, 0, buf.length);
+    }
+
+    @Override
+    public synchronized int read(final byte buf[], final int off,
+        final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!this.plain.hasRemaining()) {
+            if (this.eof) {
+                return -1;
+            }
+            final ByteBuffer record = takeRecord();
+            if (record == EOF) {
+                this.eof = true;
+                if (this.readError != null) {
+                    throw this.readError;
+                }
+                return -1;
+            }
+            try {
+                final int maxPlain = this.codec.maxPlainLength(record.get(0),
+                    RecordCodec.messageLength(record.array(), 0));
+                if (len >= maxPlain) {
+                    // Decrypt straight into the caller's array.
+                    final int read = this.codec.decodeRecord(record,
+                        ByteBuffer.wrap(buf, off, len));
+                    if (read > 0) {
+                        return read;
+                    }
+                    continue;
+                }
+                if (this.plainBytes.length < maxPlain) {
+                    this.plainBytes = new byte[maxPlain];
+                    this.plain = ByteBuffer.wrap(plainBytes);
+                }
+                this.plain.clear();
+                this.codec.decodeRecord(record, this.plain);
+                this.plain.flip();
+            } finally {
+                record.clear();
+                this.free.add(record);
+            }
+        }
+        final int toCopy = Math.min(len, this.plain.remaining());
+        this.plain.get(buf, off, toCopy);
+        return toCopy;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        final int n = read(oneByte, 0, 1);
+        if (n <= 0) { // EOF
+            return -1;
+        }
+        return oneByte[0] & 0xff;
+    }
+
+    @Override
+    public int available() throws IOException {
+        synchronized (this) {
+            return this.plain.remaining();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOG.info("CLOSING INPUT STREAM");
+        this.closed = true;
+        this.inputStream.close();
+        this.readerThread.interrupt();
+    }
+
+    private ByteBuffer takeRecord() throws IOException {
+        try {
+            return this.filled.take();
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for data");
+        }
+    }
+
+    /**
+     * Reads whole raw records off the wrapped stream. This only does the
+     * framing, leaving verification and decryption to the reading thread.
+     */
+    private class RecordReader implements Runnable {
+
+        public void run() {
+            try {
+                while (true) {
+                    final ByteBuffer record = readRecord(free.take());
+                    if (record == null) {
+                        break;
+                    }
+                    filled.put(record);
+                }
+            } catch (final IOException e) {
+                if (!closed) {
+                    LOG.debug("Error reading records", e);
+                    readError = e;
+                }
+            } catch (final InterruptedException e) {
+                LOG.debug("Interrupted reading records");
+            } catch (final RuntimeException e) {
+                // Bad version bytes, for example.
+                readError = new IoExceptionWithCause("Bad record", e);
+            }
+            // There's always room for the marker since we never hand out
+            // more buffers than the queue holds.
+            filled.offer(EOF);
+        }
+
+        /**
+         * Reads a record into the specified buffer, or into a bigger one
+         * that replaces it for a jumbo record that doesn't fit.
+         *
+         * @return The buffer holding the record, or <code>null</code> at
+         * the end of the stream.
+         */
+        private ByteBuffer readRecord(final ByteBuffer buffer)
+            throws IOException {
+            ByteBuffer record = buffer;
+            byte[] array = record.array();
+            if (!readFully(array, 0, RecordCodec.HEADER_SIZE)) {
+                return null;
+            }
+            final int headerSize = RecordCodec.headerSize(array[0]);
+            readFully(array, RecordCodec.HEADER_SIZE,
+                headerSize - RecordCodec.HEADER_SIZE);
+            final int recordSize = RecordCodec.recordSize(array, 0);
+            if (recordSize < headerSize ||
+                recordSize > codec.maxRecordLength()) {
+                throw new IOException("Record too big: "+recordSize);
+            }
+            if (recordSize > array.length) {
+                final byte[] bigger = new byte[recordSize];
+                System.arraycopy(array, 0, bigger, 0, headerSize);
+                array = bigger;
+                record = ByteBuffer.wrap(array);
+            }
+            readFully(array, headerSize, recordSize - headerSize);
+            record.limit(recordSize);
+            return record;
+        }
+
+        /**
+         * Fills part of a record from the wrapped stream.
+         *
+         * @return <code>false</code> if the stream ended before the first
+         * byte of the record, otherwise <code>true</code>.
+         * @throws IOException If the stream ended partway through the
+         * record, or on any read error.
+         */
+        private boolean readFully(final byte[] array, final int off,
+            final int len) throws IOException {
+            int index = 0;
+            while (index < len) {
+                final int read =
+                    inputStream.read(array, off + index, len - index);
+                if (read == -1) {
+                    if (off + index == 0) {
+                        return false;
+                    }
+                    throw new IOException("Stream ended mid-record");
+                }
+                index += read;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PipelinedDecryptingInputStream [inputStream=" +
+            inputStream + "]";
+    }
+}
@@ -0,0 +1,1033 @@
+package org.littleshoot.util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Key-scoped context for encoding and decoding encrypted records. The
+ * {@link Cipher} and {@link Mac} instances are looked up and initialized
+ * once for the key and are then reused for every record. Instances are
+ * not thread safe, so they should be held per stream or per thread.
+ * <p>
+ * Records have the following format:
+ * <pre>
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |    Version    |         Message Length        |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                                                               |
+ * |                        Message (N bytes)                      |
+ * |                                                               |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * |                          MAC (N bytes)                        |
+ * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * </pre>
+ * For {@link #VERSION_HMAC} records the message is AES ciphertext and the
+ * MAC is an HMAC-SHA256 over the header and ciphertext. For
+ * {@link #VERSION_GCM} records the message is a 12 byte nonce followed by
+ * AES-GCM ciphertext and its 16 byte tag, authenticating the header as
+ * additional data, and there is no separate MAC. Decoding dispatches on the
+ * version byte, so peers that only write version 1 can talk to peers that
+ * write version 2 as long as the version 2 side reads both.
+ * <p>
+ * Codecs created with a maximum record size above
+ * {@link CommonUtils#SIZE_LIMIT} write jumbo records for bulk transfers.
+ * Those set {@link #JUMBO_FLAG} in the version byte and use a four byte
+ * length, so a big transfer pays for far fewer headers, MACs and cipher
+ * inits. Both sides have to agree to use them, and every codec rejects
+ * records bigger than its own maximum record size allows.
+ * <p>
+ * Codecs can also deflate the plain text of each record before encrypting
+ * it, see {@link #setCompressing(boolean)}. Those records set
+ * {@link #COMPRESSED_FLAG} in the version byte, and records that don't get
+ * smaller are sent raw.
+ */
+public class RecordCodec {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RecordCodec.class);
+
+    //private static final String DEFAULT_CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String DEFAULT_CIPHER = "AES";
+
+    private static final String GCM_CIPHER = "AES/GCM/NoPadding";
+
+    private static final String MAC_ALGORITHM = "hmacSHA256";
+
+    /**
+     * AES encrypted records with a trailing HMAC-SHA256.
+     */
+    public static final byte VERSION_HMAC = 1;
+
+    /**
+     * AES-GCM records with a per-record nonce.
+     */
+    public static final byte VERSION_GCM = 2;
+
+    /**
+     * Set in the version byte of records with a four byte length.
+     */
+    public static final byte JUMBO_FLAG = (byte) 0x80;
+
+    /**
+     * Set in the version byte of records whose plain text was deflated
+     * before encryption.
+     */
+    public static final byte COMPRESSED_FLAG = 0x40;
+
+    /**
+     * Masks the flags out of the version byte.
+     */
+    private static final int VERSION_MASK = 0x3F;
+
+    /**
+     * Records smaller than this rarely compress, so we don't try.
+     */
+    private static final int MIN_COMPRESS_SIZE = 128;
+
+    /**
+     * The size of the version and length header.
+     */
+    public static final int HEADER_SIZE = 3;
+
+    /**
+     * The size of the version and length header of jumbo records.
+     */
+    public static final int JUMBO_HEADER_SIZE = 5;
+
+    /**
+     * The largest maximum record size codecs accept.
+     */
+    public static final int MAX_JUMBO_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The size of the trailing MAC on {@link #VERSION_HMAC} records.
+     */
+    public static final int MAC_SIZE = 32;
+
+    /**
+     * The size of the nonce leading {@link #VERSION_GCM} messages.
+     */
+    public static final int GCM_NONCE_SIZE = 12;
+
+    /**
+     * The size of the tag ending {@link #VERSION_GCM} messages.
+     */
+    public static final int GCM_TAG_SIZE = 16;
+
+    /**
+     * The largest record a two byte length field allows.
+     */
+    public static final int MAX_RECORD_SIZE = HEADER_SIZE + 0xFFFF + MAC_SIZE;
+
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private final byte[] key;
+
+    private final SecretKeySpec skeySpec;
+
+    private final byte writeVersion;
+
+    /**
+     * The most plain text we put in one record.
+     */
+    private final int maxRecordSize;
+
+    private final boolean jumbo;
+
+    private final int headerSize;
+
+    private Cipher encryptCipher;
+
+    private Cipher decryptCipher;
+
+    private Cipher gcmEncryptCipher;
+
+    private Cipher gcmDecryptCipher;
+
+    private Mac mac;
+
+    private boolean compressing = false;
+
+    private RecordStats stats = RecordStats.getAggregate();
+
+    private Deflater deflater;
+
+    private Inflater inflater;
+
+    /**
+     * Scratch space for compressed plain text.
+     */
+    private byte[] deflated = new byte[0];
+
+    /**
+     * Scratch space for uncompressed plain text when the caller's buffers
+     * are direct.
+     */
+    private byte[] inflated = new byte[0];
+
+    /**
+     * Scratch space for computed MACs so the buffer paths don't allocate.
+     */
+    private final byte[] macBytes = new byte[MAC_SIZE];
+
+    /**
+     * The GCM nonce we write: a random prefix followed by a record counter,
+     * so we never reuse a nonce with the same key.
+     */
+    private final byte[] nonce = new byte[GCM_NONCE_SIZE];
+
+    private int nonceCounter = 0;
+
+    /**
+     * Scratch space for the GCM nonces of records we read.
+     */
+    private final byte[] peerNonce = new byte[GCM_NONCE_SIZE];
+
+    /**
+     * Creates a new codec for the specified key that writes
+     * {@link #VERSION_HMAC} records.
+     *
+     * @param key The key to encrypt, decrypt and MAC with.
+     */
+    public RecordCodec(final byte[] key) {
+        this(key, VERSION_HMAC);
+    }
+
+    /**
+     * Creates a new codec for the specified key. The codec reads records of
+     * any version but writes records of the specified version.
+     *
+     * @param key The key to encrypt, decrypt and MAC with.
+     * @param writeVersion The version of the records to write, either
+     * {@link #VERSION_HMAC} or {@link #VERSION_GCM}.
+     */
+    public RecordCodec(final byte[] key, final byte writeVersion) {
+        this(key, writeVersion, CommonUtils.SIZE_LIMIT);
+    }
+
+    /**
+     * Creates a new codec for the specified key with the specified maximum
+     * record size. Sizes above {@link CommonUtils#SIZE_LIMIT} mean we write
+     * jumbo records, which only peers using the same size can read.
+     *
+     * @param key The key to encrypt, decrypt and MAC with.
+     * @param writeVersion The version of the records to write, either
+     * {@link #VERSION_HMAC} or {@link #VERSION_GCM}.
+     * @param maxRecordSize The most plain text to write in one record and,
+     * for jumbo records, the most we'll accept, up to
+     * {@link #MAX_JUMBO_RECORD_SIZE}.
+     */
+    public RecordCodec(final byte[] key, final byte writeVersion,
+        final int maxRecordSize) {
+        if (key == null) {
+            LOG.error("Key can't be null!!");
+            throw new NullPointerException("Null key");
+        }
+        if (writeVersion != VERSION_HMAC && writeVersion != VERSION_GCM) {
+            throw new IllegalArgumentException("Bad version: "+writeVersion);
+        }
+        this.key = key;
+        this.skeySpec = new SecretKeySpec(key, "AES");
+        this.writeVersion = writeVersion;
+        if (maxRecordSize < 1 || maxRecordSize > MAX_JUMBO_RECORD_SIZE) {
+            throw new IllegalArgumentException("Bad max record size: "+
+                maxRecordSize);
+        }
+        this.maxRecordSize = maxRecordSize;
+        this.jumbo = maxRecordSize > CommonUtils.SIZE_LIMIT;
+        this.headerSize = jumbo ? JUMBO_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Returns whether or not this codec uses the specified key.
+     *
+     * @param otherKey The key to check.
+     * @return <code>true</code> if this codec uses the key, otherwise
+     * <code>false</code>.
+     */
+    public boolean hasKey(final byte[] otherKey) {
+        return this.key == otherKey || Arrays.equals(this.key, otherKey);
+    }
+
+    /**
+     * Accessor for the version of the records this codec writes.
+     *
+     * @return The version of the records this codec writes.
+     */
+    public byte getWriteVersion() {
+        return writeVersion;
+    }
+
+    /**
+     * Sets whether or not to deflate records before encrypting them. This
+     * pays off for text such as HTTP, XML or JSON. Peers have to be running
+     * a version that reads compressed records.
+     *
+     * @param compressing Whether or not to compress the records we write.
+     */
+    public void setCompressing(final boolean compressing) {
+        this.compressing = compressing;
+    }
+
+    /**
+     * Accessor for whether or not we compress the records we write.
+     *
+     * @return <code>true</code> if we compress records, otherwise
+     * <code>false</code>.
+     */
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Sets the stats to update for every record. By default codecs only
+     * update the aggregate stats for the process.
+     *
+     * @param stats The stats to update, or <code>null</code> for none.
+     */
+    public void setStats(final RecordStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Accessor for the most plain text this codec puts in one record.
+     *
+     * @return The maximum record size.
+     */
+    public int getMaxRecordSize() {
+        return maxRecordSize;
+    }
+
+    /**
+     * Returns the size of the biggest record this codec will decode. That's
+     * the biggest standard record, or the biggest jumbo record holding
+     * {@link #getMaxRecordSize()} bytes if that's bigger.
+     *
+     * @return The maximum encoded record length.
+     */
+    public int maxRecordLength() {
+        return Math.max(MAX_RECORD_SIZE, JUMBO_HEADER_SIZE +
+            maxRecordSize + AES_BLOCK_SIZE + MAC_SIZE);
+    }
+
+    /**
+     * Returns the size of the header starting with the specified version
+     * byte.
+     *
+     * @param version The version byte, including any flags.
+     * @return The header size.
+     */
+    static int headerSize(final int version) {
+        return (version & JUMBO_FLAG) != 0 ? JUMBO_HEADER_SIZE : HEADER_SIZE;
+    }
+
+    /**
+     * Returns the length of the message in the header at the specified
+     * offset. The whole header must be there, see {@link #headerSize(int)}.
+     *
+     * @param header The array holding the header.
+     * @param off The offset of the header.
+     * @return The message length.
+     */
+    static int messageLength(final byte[] header, final int off) {
+        if ((header[off] & JUMBO_FLAG) != 0) {
+            return ((header[off+1] & 0xFF) << 24) |
+                ((header[off+2] & 0xFF) << 16) |
+                ((header[off+3] & 0xFF) << 8) | (header[off+4] & 0xFF);
+        }
+        return ((header[off+1] & 0xFF) << 8) | (header[off+2] & 0xFF);
+    }
+
+    private static int messageLength(final ByteBuffer buf, final int off) {
+        if ((buf.get(off) & JUMBO_FLAG) != 0) {
+            return ((buf.get(off+1) & 0xFF) << 24) |
+                ((buf.get(off+2) & 0xFF) << 16) |
+                ((buf.get(off+3) & 0xFF) << 8) | (buf.get(off+4) & 0xFF);
+        }
+        return ((buf.get(off+1) & 0xFF) << 8) | (buf.get(off+2) & 0xFF);
+    }
+
+    private void writeHeader(final ByteBuffer dst, final int headerPos,
+        final byte version, final int size) {
+        if (this.jumbo) {
+            dst.put(headerPos, (byte) (version | JUMBO_FLAG));
+            dst.put(headerPos + 1, (byte) (size >>> 24));
+            dst.put(headerPos + 2, (byte) (size >>> 16));
+            dst.put(headerPos + 3, (byte) (size >>> 8));
+            dst.put(headerPos + 4, (byte) size);
+        } else {
+            dst.put(headerPos, version);
+            dst.put(headerPos + 1, (byte) (size >>> 8));
+            dst.put(headerPos + 2, (byte) size);
+        }
+    }
+
+    /**
+     * Returns the number of bytes following the length-counted message for
+     * a record of the specified version.
+     *
+     * @param version The record version.
+     * @return The number of trailing bytes.
+     */
+    static int trailerSize(final int version) {
+        switch (version & VERSION_MASK) {
+            case VERSION_HMAC:
+                return MAC_SIZE;
+            case VERSION_GCM:
+                return 0;
+            default:
+                LOG.error("Unknown record version: {}", version);
+                throw new IllegalArgumentException("Bad version: "+version);
+        }
+    }
+
+    /**
+     * Returns the most plain text a record of the specified version and
+     * message length can hold. Decoding needs this much room. For
+     * compressed records that's the most any record may hold.
+     *
+     * @param version The record version.
+     * @param size The message length from the header.
+     * @return The maximum plain text length.
+     */
+    int maxPlainLength(final int version, final int size) {
+        if ((version & COMPRESSED_FLAG) != 0) {
+            if ((version & JUMBO_FLAG) != 0) {
+                return Math.max(this.maxRecordSize, CommonUtils.SIZE_LIMIT);
+            }
+            return CommonUtils.SIZE_LIMIT;
+        }
+        if ((version & VERSION_MASK) == VERSION_GCM) {
+            return Math.max(0, size - GCM_NONCE_SIZE - GCM_TAG_SIZE);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the total size of the record starting at the specified header.
+     * The whole header must be there, see {@link #headerSize(int)}.
+     *
+     * @param header The array holding the header.
+     * @param off The offset of the header.
+     * @return The total record size.
+     */
+    static int recordSize(final byte[] header, final int off) {
+        return headerSize(header[off]) + messageLength(header, off) +
+            trailerSize(header[off]);
+    }
+
+    /**
+     * Returns the number of bytes {@link #encodeInto(ByteBuffer, ByteBuffer)}
+     * will write for the specified number of plain text bytes. When
+     * compressing this is an upper bound, as records are never bigger
+     * compressed than raw.
+     *
+     * @param len The number of plain text bytes.
+     * @return The number of encoded bytes.
+     */
+    public int encodedLength(final int len) {
+        if (len < this.maxRecordSize) {
+            return recordLength(len);
+        }
+        final int full = len / this.maxRecordSize;
+        final int rest = len % this.maxRecordSize;
+        int total = full * recordLength(this.maxRecordSize);
+        if (rest > 0) {
+            total += recordLength(rest);
+        }
+        return total;
+    }
+
+    private int recordLength(final int len) {
+        if (this.writeVersion == VERSION_GCM) {
+            return this.headerSize + GCM_NONCE_SIZE + len + GCM_TAG_SIZE;
+        }
+        // PKCS5 always pads with at least one byte.
+        final int cipherTextLength =
+            (len / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+        return this.headerSize + cipherTextLength + MAC_SIZE;
+    }
+
+    /**
+     * Encodes the specified data, splitting it into as many records as
+     * necessary.
+     *
+     * @param data The data to encode.
+     * @param off The offset within the data to start at.
+     * @param len The number of bytes to encode.
+     * @return The encoded records.
+     */
+    public byte[] encode(final byte[] data, final int off, final int len) {
+        final byte[] full = new byte[encodedLength(len)];
+        final int written =
+            encodeInto(ByteBuffer.wrap(data, off, len), ByteBuffer.wrap(full));
+        if (written != full.length) {
+            return Arrays.copyOf(full, written);
+        }
+        return full;
+    }
+
+    /**
+     * Encodes the specified data as a single record.
+     *
+     * @param data The data to encode.
+     * @param off The offset within the data to start at.
+     * @param len The number of bytes to encode.
+     * @return The encoded record.
+     */
+    public byte[] encodeSingleMessage(final byte[] data, final int off,
+        final int len) {
+        final byte[] full = new byte[recordLength(len)];
+        final ByteBuffer dst = ByteBuffer.wrap(full);
+        encodeRecordInto(ByteBuffer.wrap(data, off, len), dst, len);
+        if (dst.position() != full.length) {
+            return Arrays.copyOf(full, dst.position());
+        }
+        return full;
+    }
+
+    /**
+     * Encodes all remaining bytes of the source buffer directly into the
+     * destination buffer, splitting them into as many records as necessary.
+     * No intermediate arrays are allocated, so either buffer may be direct.
+     *
+     * @param src The plain text to encode.
+     * @param dst The buffer to write the encoded records to.
+     * @return The number of bytes written to the destination.
+     * @throws BufferOverflowException If the destination doesn't have room
+     * for all the records, in which case neither buffer is modified.
+     */
+    public int encodeInto(final ByteBuffer src, final ByteBuffer dst) {
+        if (dst.remaining() < encodedLength(src.remaining())) {
+            throw new BufferOverflowException();
+        }
+        final int start = dst.position();
+        do {
+            encodeRecordInto(src, dst,
+                Math.min(src.remaining(), this.maxRecordSize));
+        } while (src.hasRemaining());
+        return dst.position() - start;
+    }
+
+    private void encodeRecordInto(final ByteBuffer plain, final ByteBuffer dst,
+        final int plainLength) {
+        final long start = System.nanoTime();
+        final int headerPos = dst.position();
+        ByteBuffer src = plain;
+        int len = plainLength;
+        byte version = this.writeVersion;
+        if (this.compressing && plainLength >= MIN_COMPRESS_SIZE) {
+            final int deflatedLength = deflate(plain, plainLength);
+            if (deflatedLength >= 0) {
+                src = ByteBuffer.wrap(this.deflated, 0, deflatedLength);
+                len = deflatedLength;
+                version |= COMPRESSED_FLAG;
+            }
+        }
+        final int srcLimit = src.limit();
+        src.limit(src.position() + len);
+        dst.position(headerPos + this.headerSize);
+        final int size;
+        try {
+            if (this.writeVersion == VERSION_GCM) {
+                size = encryptGcm(src, dst, headerPos, version, len);
+            } else {
+                size = encryptCipher().doFinal(src, dst);
+            }
+        } catch (final IllegalBlockSizeException e) {
+            throw new IllegalArgumentException("Bad block size?", e);
+        } catch (final BadPaddingException e) {
+            throw new IllegalArgumentException("Bad padding?", e);
+        } catch (final ShortBufferException e) {
+            throw new IllegalArgumentException("Cipher buffer too short?", e);
+        } finally {
+            src.limit(srcLimit);
+        }
+        if (this.writeVersion != VERSION_GCM) {
+            writeHeader(dst, headerPos, version, size);
+            appendMac(dst, headerPos);
+        }
+        if (this.stats != null) {
+            this.stats.encoded(plainLength, System.nanoTime() - start);
+        }
+    }
+
+    private void appendMac(final ByteBuffer dst, final int headerPos) {
+        final int macPos = dst.position();
+        final int dstLimit = dst.limit();
+        dst.limit(macPos);
+        dst.position(headerPos);
+        final Mac hmac = mac();
+        hmac.update(dst);
+        dst.limit(dstLimit);
+        try {
+            hmac.doFinal(this.macBytes, 0);
+        } catch (final ShortBufferException e) {
+            throw new IllegalArgumentException("MAC buffer too short?", e);
+        }
+        dst.put(this.macBytes);
+    }
+
+    private int encryptGcm(final ByteBuffer src, final ByteBuffer dst,
+        final int headerPos, final byte version, final int len)
+        throws IllegalBlockSizeException, BadPaddingException,
+        ShortBufferException {
+        // We know the length up front, so write the header first to use it
+        // as additional authenticated data.
+        final int size = GCM_NONCE_SIZE + len + GCM_TAG_SIZE;
+        writeHeader(dst, headerPos, version, size);
+
+        nextNonce();
+        final Cipher cipher = gcmEncryptCipher();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, skeySpec,
+                new GCMParameterSpec(GCM_TAG_SIZE * 8, nonce));
+        } catch (final InvalidKeyException e) {
+            throw new IllegalArgumentException("Bad key?", e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new IllegalArgumentException("Bad nonce?", e);
+        }
+        final int dstLimit = dst.limit();
+        final int noncePos = dst.position();
+        dst.limit(noncePos);
+        dst.position(headerPos);
+        cipher.updateAAD(dst);
+        dst.limit(dstLimit);
+        dst.put(nonce);
+        cipher.doFinal(src, dst);
+        return size;
+    }
+
+    /**
+     * Deflates the next record's plain text into {@link #deflated}. If that
+     * doesn't make it smaller the source is left alone and we send the
+     * record raw.
+     *
+     * @return The deflated length, or -1 if the record doesn't compress.
+     */
+    private int deflate(final ByteBuffer src, final int len) {
+        final int position = src.position();
+        final byte[] input;
+        final int inputOffset;
+        if (src.hasArray()) {
+            input = src.array();
+            inputOffset = src.arrayOffset() + position;
+        } else {
+            this.inflated = ensureCapacity(this.inflated, len);
+            src.get(this.inflated, 0, len);
+            src.position(position);
+            input = this.inflated;
+            inputOffset = 0;
+        }
+        this.deflated = ensureCapacity(this.deflated, len);
+        final Deflater def = deflater();
+        def.reset();
+        def.setInput(input, inputOffset, len);
+        def.finish();
+        // Only give it room for less than the original, so it stops as soon
+        // as compressing doesn't pay.
+        final int deflatedLength = def.deflate(this.deflated, 0, len - 1);
+        if (!def.finished()) {
+            return -1;
+        }
+        src.position(position + len);
+        return deflatedLength;
+    }
+
+    private static byte[] ensureCapacity(final byte[] array, final int len) {
+        if (array.length >= len) {
+            return array;
+        }
+        return new byte[len];
+    }
+
+    private void nextNonce() {
+        if (this.nonceCounter == 0) {
+            // Fresh prefix at start and whenever the counter wraps.
+            final byte[] prefix = new byte[GCM_NONCE_SIZE - 4];
+            secureRandom.nextBytes(prefix);
+            System.arraycopy(prefix, 0, nonce, 0, prefix.length);
+        }
+        final int counter = this.nonceCounter++;
+        nonce[GCM_NONCE_SIZE - 4] = (byte) (counter >>> 24);
+        nonce[GCM_NONCE_SIZE - 3] = (byte) (counter >>> 16);
+        nonce[GCM_NONCE_SIZE - 2] = (byte) (counter >>> 8);
+        nonce[GCM_NONCE_SIZE - 1] = (byte) counter;
+    }
+
+    /**
+     * Decodes the single record starting at the specified offset, updating
+     * the offset to point to the start of the next record.
+     *
+     * @param msg The encoded data.
+     * @param atomicOffset The offset of the record, updated on return.
+     * @return The decoded record.
+     */
+    public byte[] decodeSingleMessage(final byte[] msg,
+        final AtomicInteger atomicOffset) {
+        final int offset = atomicOffset.get();
+        final int size = messageLength(msg, offset);
+        checkRecordSize(msg[offset], size);
+        final int recordSize = recordSize(msg, offset);
+        atomicOffset.set(offset + recordSize);
+        final byte[] plain = new byte[maxPlainLength(msg[offset], size)];
+        final int plainLength = decodeRecord(
+            ByteBuffer.wrap(msg, offset, recordSize), ByteBuffer.wrap(plain));
+        if (plainLength != plain.length) {
+            return Arrays.copyOf(plain, plainLength);
+        }
+        return plain;
+    }
+
+    /**
+     * Decodes as many complete records as are available in the source
+     * buffer directly into the destination buffer. A trailing partial
+     * record is left in the source buffer, as is a record whose plain text
+     * might not fit in the destination, so this can be called repeatedly
+     * as more data arrives. No intermediate arrays are allocated, so either
+     * buffer may be direct.
+     * <p>
+     * Note the destination needs room for the full ciphertext length of a
+     * version 1 record to decrypt it, although the plain text written is
+     * somewhat shorter, and room for a full record to inflate a compressed
+     * record.
+     *
+     * @param src The encoded records.
+     * @param dst The buffer to write the plain text to.
+     * @return The number of plain text bytes written to the destination.
+     */
+    public int decodeInto(final ByteBuffer src, final ByteBuffer dst) {
+        final int start = dst.position();
+        while (src.remaining() >= HEADER_SIZE) {
+            final int headerPos = src.position();
+            final int version = src.get(headerPos);
+            final int headerSize = headerSize(version);
+            if (src.remaining() < headerSize) {
+                break;
+            }
+            final int size = messageLength(src, headerPos);
+            checkRecordSize(version, size);
+            if (src.remaining() < headerSize + size + trailerSize(version) ||
+                dst.remaining() < maxPlainLength(version, size)) {
+                break;
+            }
+            decodeRecord(src, dst);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Decodes the single complete record at the source buffer's position
+     * into the destination buffer, which must have room for
+     * {@link #maxPlainLength(int, int)} bytes.
+     *
+     * @param src The buffer holding the record.
+     * @param dst The buffer to write the plain text to.
+     * @return The number of plain text bytes written.
+     */
+    int decodeRecord(final ByteBuffer src, final ByteBuffer dst) {
+        final int headerPos = src.position();
+        final int version = src.get(headerPos);
+        final int headerSize = headerSize(version);
+        final int size = messageLength(src, headerPos);
+        checkRecordSize(version, size);
+        final long start = System.nanoTime();
+        final int cipherEnd = headerPos + headerSize + size;
+        final int srcLimit = src.limit();
+        final int dstStart = dst.position();
+        final boolean gcm = (version & VERSION_MASK) == VERSION_GCM;
+        final boolean compressed = (version & COMPRESSED_FLAG) != 0;
+        if (!gcm) {
+            // The MAC covers the header and ciphertext, so check it before
+            // spending anything on decryption. Garbage costs a hash.
+            verifyMac(src, headerPos, cipherEnd);
+        }
+        // Compressed records decrypt to scratch space and inflate from there.
+        final ByteBuffer decrypted;
+        if (compressed) {
+            this.deflated = ensureCapacity(this.deflated, size);
+            decrypted = ByteBuffer.wrap(this.deflated);
+        } else {
+            decrypted = dst;
+        }
+        try {
+            if (gcm) {
+                decryptGcm(src, decrypted, headerPos, headerSize, cipherEnd);
+            } else {
+                src.limit(cipherEnd);
+                src.position(headerPos + headerSize);
+                decryptCipher().doFinal(src, decrypted);
+            }
+        } catch (final AEADBadTagException e) {
+            LOG.error("GCM tags don't match!!");
+            macFailure();
+            throw new IllegalArgumentException("Tags don't match!!", e);
+        } catch (final IllegalBlockSizeException e) {
+            // Don't trust the cipher state after a failure.
+            this.decryptCipher = null;
+            decodeError();
+            throw new IllegalArgumentException("Bad block size?", e);
+        } catch (final BadPaddingException e) {
+            this.decryptCipher = null;
+            decodeError();
+            throw new IllegalArgumentException("Bad padding?", e);
+        } catch (final ShortBufferException e) {
+            this.decryptCipher = null;
+            decodeError();
+            throw new IllegalArgumentException("Buffer too short?", e);
+        } finally {
+            src.limit(srcLimit);
+        }
+        if (compressed) {
+            inflate(decrypted.position(), dst, maxPlainLength(version, size));
+        }
+        src.position(cipherEnd + trailerSize(version));
+        final int plainLength = dst.position() - dstStart;
+        if (this.stats != null) {
+            this.stats.decoded(plainLength, System.nanoTime() - start);
+        }
+        return plainLength;
+    }
+
+    /**
+     * Inflates a decrypted record from {@link #deflated} into the
+     * destination, refusing to produce more than a record can hold.
+     */
+    private void inflate(final int len, final ByteBuffer dst,
+        final int maxPlain) {
+        final byte[] output;
+        final int outputOffset;
+        final int room = Math.min(dst.remaining(), maxPlain);
+        if (dst.hasArray()) {
+            output = dst.array();
+            outputOffset = dst.arrayOffset() + dst.position();
+        } else {
+            this.inflated = ensureCapacity(this.inflated, room);
+            output = this.inflated;
+            outputOffset = 0;
+        }
+        final Inflater inf = inflater();
+        inf.reset();
+        inf.setInput(this.deflated, 0, len);
+        final int inflatedLength;
+        try {
+            inflatedLength = inf.inflate(output, outputOffset, room);
+        } catch (final DataFormatException e) {
+            decodeError();
+            throw new IllegalArgumentException("Bad compressed record", e);
+        }
+        if (!inf.finished()) {
+            LOG.error("Compressed record too big or truncated");
+            decodeError();
+            throw new IllegalArgumentException("Bad compressed record");
+        }
+        if (dst.hasArray()) {
+            dst.position(dst.position() + inflatedLength);
+        } else {
+            dst.put(output, 0, inflatedLength);
+        }
+    }
+
+    /**
+     * Rejects records with unknown versions, and records bigger than we
+     * accept before we buffer or process them. Standard records are always
+     * small enough.
+     */
+    private void checkRecordSize(final int version, final int size) {
+        final int trailerSize;
+        try {
+            trailerSize = trailerSize(version);
+        } catch (final IllegalArgumentException e) {
+            decodeError();
+            throw e;
+        }
+        if ((version & JUMBO_FLAG) == 0) {
+            return;
+        }
+        final int recordSize = JUMBO_HEADER_SIZE + size + trailerSize;
+        if (size < 0 || recordSize > maxRecordLength()) {
+            LOG.error("Record too big: {}", size);
+            decodeError();
+            throw new IllegalArgumentException("Record too big: "+size);
+        }
+    }
+
+    private void macFailure() {
+        if (this.stats != null) {
+            this.stats.macFailure();
+        }
+    }
+
+    private void decodeError() {
+        if (this.stats != null) {
+            this.stats.decodeError();
+        }
+    }
+
+    /**
+     * Checks the MAC trailing the ciphertext of a version 1 record, leaving
+     * the buffer's position and limit alone.
+     */
+    private void verifyMac(final ByteBuffer src, final int headerPos,
+        final int cipherEnd) {
+        final int srcPos = src.position();
+        final int srcLimit = src.limit();
+        // Does the mac include the length and the version? Probably.
+        src.limit(cipherEnd);
+        src.position(headerPos);
+        final Mac hmac = mac();
+        hmac.update(src);
+        src.limit(srcLimit);
+        src.position(srcPos);
+        try {
+            hmac.doFinal(this.macBytes, 0);
+        } catch (final ShortBufferException e) {
+            throw new IllegalArgumentException("MAC buffer too short?", e);
+        }
+
+        // Now make sure the MACs match, in constant time so the comparison
+        // doesn't leak how much of a forged MAC is right.
+        int diff = 0;
+        for (int i = 0; i < MAC_SIZE; i++) {
+            diff |= this.macBytes[i] ^ src.get(cipherEnd + i);
+        }
+        if (diff != 0) {
+            LOG.error("MACs don't match!!");
+            macFailure();
+            throw new IllegalArgumentException("Macs don't match!!");
+        }
+    }
+
+    private void decryptGcm(final ByteBuffer src, final ByteBuffer dst,
+        final int headerPos, final int headerSize, final int cipherEnd)
+        throws IllegalBlockSizeException, BadPaddingException,
+        ShortBufferException {
+        final int noncePos = headerPos + headerSize;
+        if (cipherEnd - noncePos < GCM_NONCE_SIZE + GCM_TAG_SIZE) {
+            decodeError();
+            throw new IllegalArgumentException("GCM record too short");
+        }
+        for (int i = 0; i < GCM_NONCE_SIZE; i++) {
+            this.peerNonce[i] = src.get(noncePos + i);
+        }
+        final Cipher cipher = gcmDecryptCipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, skeySpec,
+                new GCMParameterSpec(GCM_TAG_SIZE * 8, this.peerNonce));
+        } catch (final InvalidKeyException e) {
+            throw new IllegalArgumentException("Bad key?", e);
+        } catch (final InvalidAlgorithmParameterException e) {
+            throw new IllegalArgumentException("Bad nonce?", e);
+        }
+        src.limit(noncePos);
+        src.position(headerPos);
+        cipher.updateAAD(src);
+        src.limit(cipherEnd);
+        src.position(noncePos + GCM_NONCE_SIZE);
+        cipher.doFinal(src, dst);
+    }
+
+    private Cipher encryptCipher() {
+        if (this.encryptCipher == null) {
+            this.encryptCipher = newCipher(DEFAULT_CIPHER, Cipher.ENCRYPT_MODE);
+        }
+        return this.encryptCipher;
+    }
+
+    private Cipher decryptCipher() {
+        if (this.decryptCipher == null) {
+            this.decryptCipher = newCipher(DEFAULT_CIPHER, Cipher.DECRYPT_MODE);
+        }
+        return this.decryptCipher;
+    }
+
+    private Cipher gcmEncryptCipher() {
+        if (this.gcmEncryptCipher == null) {
+            this.gcmEncryptCipher = newCipher(GCM_CIPHER, -1);
+        }
+        return this.gcmEncryptCipher;
+    }
+
+    private Cipher gcmDecryptCipher() {
+        if (this.gcmDecryptCipher == null) {
+            this.gcmDecryptCipher = newCipher(GCM_CIPHER, -1);
+        }
+        return this.gcmDecryptCipher;
+    }
+
+    /**
+     * Creates a new cipher, initializing it in the specified mode unless
+     * the mode is negative. GCM ciphers need a fresh nonce per record, so
+     * they are initialized for each record instead.
+     */
+    private Cipher newCipher(final String transformation, final int mode) {
+        try {
+            final Cipher cipher = Cipher.getInstance(transformation);
+            if (mode >= 0) {
+                cipher.init(mode, skeySpec);
+            }
+            return cipher;
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("No AES?", e);
+        } catch (final NoSuchPaddingException e) {
+            throw new IllegalArgumentException("Wrong padding?", e);
+        } catch (final InvalidKeyException e) {
+            throw new IllegalArgumentException("Bad key?", e);
+        }
+    }
+
+    private Deflater deflater() {
+        if (this.deflater == null) {
+            // Raw deflate, as the MAC or tag already covers integrity.
+            this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        return this.deflater;
+    }
+
+    private Inflater inflater() {
+        if (this.inflater == null) {
+            this.inflater = new Inflater(true);
+        }
+        return this.inflater;
+    }
+
+    private Mac mac() {
+        if (this.mac == null) {
+            try {
+                this.mac = Mac.getInstance(MAC_ALGORITHM);
+                this.mac.init(skeySpec);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("No HMAC 256?", e);
+            } catch (final InvalidKeyException e) {
+                throw new IllegalArgumentException("Bad key?", e);
+            }
+        }
+        return this.mac;
+    }
+}
@@ -0,0 +1,224 @@
+package org.littleshoot.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms for the record layer. Each
+ * {@link CipherSocket} has its own stats, and every update also goes to
+ * the aggregate stats for the whole process, which are registered as an
+ * MBean the first time they're used.
+ * <p>
+ * Updates are a few atomic increments per record, so they're cheap next
+ * to the crypto.
+ */
+public class RecordStats implements RecordStatsMBean {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RecordStats.class);
+
+    /**
+     * Enough log2 buckets for anything up to about nine minutes.
+     */
+    private static final int BUCKETS = 40;
+
+    private static RecordStats aggregate;
+
+    private final RecordStats parent;
+
+    private final AtomicLong recordsEncoded = new AtomicLong();
+    private final AtomicLong bytesEncoded = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLongArray encodeLatency = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong recordsDecoded = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLongArray decodeLatency = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong macFailures = new AtomicLong();
+    private final AtomicLong decodeErrors = new AtomicLong();
+
+    /**
+     * Creates new stats that also feed the specified parent stats.
+     *
+     * @param parent The stats to roll up into, or <code>null</code> for
+     * none.
+     */
+    public RecordStats(final RecordStats parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the stats for all records in this process, registering them
+     * with the platform MBean server on the first call.
+     *
+     * @return The aggregate stats.
+     */
+    public static synchronized RecordStats getAggregate() {
+        if (aggregate == null) {
+            aggregate = new RecordStats(null);
+            try {
+                JmxUtils.register(ManagementFactory.getPlatformMBeanServer(),
+                    aggregate);
+            } catch (final LinkageError e) {
+                // Some platforms, such as Android, don't have JMX.
+                LOG.debug("Could not register record stats", e);
+            }
+        }
+        return aggregate;
+    }
+
+    void encoded(final int bytes, final long nanos) {
+        this.recordsEncoded.incrementAndGet();
+        this.bytesEncoded.addAndGet(bytes);
+        this.encodeNanos.addAndGet(nanos);
+        this.encodeLatency.incrementAndGet(bucket(nanos));
+        if (this.parent != null) {
+            this.parent.encoded(bytes, nanos);
+        }
+    }
+
+    void decoded(final int bytes, final long nanos) {
+        this.recordsDecoded.incrementAndGet();
+        this.bytesDecoded.addAndGet(bytes);
+        this.decodeNanos.addAndGet(nanos);
+        this.decodeLatency.incrementAndGet(bucket(nanos));
+        if (this.parent != null) {
+            this.parent.decoded(bytes, nanos);
+        }
+    }
+
+    void macFailure() {
+        this.macFailures.incrementAndGet();
+        if (this.parent != null) {
+            this.parent.macFailure();
+        }
+    }
+
+    void decodeError() {
+        this.decodeErrors.incrementAndGet();
+        if (this.parent != null) {
+            this.parent.decodeError();
+        }
+    }
+
+    private static int bucket(final long nanos) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    public long getRecordsEncoded() {
+        return recordsEncoded.get();
+    }
+
+    public long getBytesEncoded() {
+        return bytesEncoded.get();
+    }
+
+    public long getRecordsDecoded() {
+        return recordsDecoded.get();
+    }
+
+    public long getBytesDecoded() {
+        return bytesDecoded.get();
+    }
+
+    public long getMacFailures() {
+        return macFailures.get();
+    }
+
+    public long getDecodeErrors() {
+        return decodeErrors.get();
+    }
+
+    public long getMeanEncodeNanos() {
+        return mean(encodeNanos, recordsEncoded);
+    }
+
+    public long getMeanDecodeNanos() {
+        return mean(decodeNanos, recordsDecoded);
+    }
+
+    public long getEncodeNanos99thPercentile() {
+        return percentile(encodeLatency, 0.99);
+    }
+
+    public long getDecodeNanos99thPercentile() {
+        return percentile(decodeLatency, 0.99);
+    }
+
+    public long[] getEncodeLatencyHistogram() {
+        return toArray(encodeLatency);
+    }
+
+    public long[] getDecodeLatencyHistogram() {
+        return toArray(decodeLatency);
+    }
+
+    public void reset() {
+        recordsEncoded.set(0);
+        bytesEncoded.set(0);
+        encodeNanos.set(0);
+        recordsDecoded.set(0);
+        bytesDecoded.set(0);
+        decodeNanos.set(0);
+        macFailures.set(0);
+        decodeErrors.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            encodeLatency.set(i, 0);
+            decodeLatency.set(i, 0);
+        }
+    }
+
+    private static long mean(final AtomicLong nanos, final AtomicLong count) {
+        final long records = count.get();
+        if (records == 0) {
+            return 0;
+        }
+        return nanos.get() / records;
+    }
+
+    private static long percentile(final AtomicLongArray histogram,
+        final double fraction) {
+        final long[] counts = toArray(histogram);
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    private static long[] toArray(final AtomicLongArray histogram) {
+        final long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordStats [recordsEncoded=" + recordsEncoded +
+            ", bytesEncoded=" + bytesEncoded +
+            ", recordsDecoded=" + recordsDecoded +
+            ", bytesDecoded=" + bytesDecoded +
+            ", macFailures=" + macFailures +
+            ", decodeErrors=" + decodeErrors + "]";
+    }
+}
@@ -0,0 +1,78 @@
+package org.littleshoot.util;
+
+/**
+ * JMX view of {@link RecordStats}.
+ */
+public interface RecordStatsMBean {
+
+    /**
+     * @return The number of records encoded.
+     */
+    long getRecordsEncoded();
+
+    /**
+     * @return The number of plain text bytes encoded.
+     */
+    long getBytesEncoded();
+
+    /**
+     * @return The number of records decoded and verified.
+     */
+    long getRecordsDecoded();
+
+    /**
+     * @return The number of plain text bytes decoded.
+     */
+    long getBytesDecoded();
+
+    /**
+     * @return The number of records rejected because their MAC or GCM tag
+     * didn't match.
+     */
+    long getMacFailures();
+
+    /**
+     * @return The number of authenticated records we still couldn't
+     * decrypt or inflate, plus records with unknown versions or sizes.
+     */
+    long getDecodeErrors();
+
+    /**
+     * @return The mean time to encode a record, in nanoseconds.
+     */
+    long getMeanEncodeNanos();
+
+    /**
+     * @return The mean time to decode a record, in nanoseconds.
+     */
+    long getMeanDecodeNanos();
+
+    /**
+     * @return An upper bound on the 99th percentile time to encode a
+     * record, in nanoseconds.
+     */
+    long getEncodeNanos99thPercentile();
+
+    /**
+     * @return An upper bound on the 99th percentile time to decode a
+     * record, in nanoseconds.
+     */
+    long getDecodeNanos99thPercentile();
+
+    /**
+     * @return Counts of records by encode time, where bucket i counts
+     * records that took less than 2^i nanoseconds and at least 2^(i-1).
+     */
+    long[] getEncodeLatencyHistogram();
+
+    /**
+     * @return Counts of records by decode time, bucketed like
+     * {@link #getEncodeLatencyHistogram()}.
+     */
+    long[] getDecodeLatencyHistogram();
+
+    /**
+     * Resets all the counters.
+     */
+    void reset();
+}
@@ -0,0 +1,243 @@
+package org.littleshoot.util;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A live relay session in a {@link RelaySessionRegistry}, counting the
+ * bytes relayed in each direction. "In" is data from the external socket
+ * to the server, and "out" is data from the server to the external socket.
+ * This class is thread safe.
+ */
+public class RelaySession {
+
+    /**
+     * How long we measure over for the current rates.
+     */
+    private static final long RATE_WINDOW = 1000;
+
+    private final RelaySessionRegistry registry;
+
+    private final String id;
+
+    private final FiveTuple fiveTuple;
+
+    private final Socket external;
+
+    private final Socket relay;
+
+    private final long created = System.currentTimeMillis();
+
+    private final Direction in = new Direction();
+
+    private final Direction out = new Direction();
+
+    private volatile boolean finished = false;
+
+    RelaySession(final RelaySessionRegistry registry, final String id,
+        final Socket external, final Socket relay) {
+        this.registry = registry;
+        this.id = id;
+        this.fiveTuple = toFiveTuple(external);
+        this.external = external;
+        this.relay = relay;
+    }
+
+    private static FiveTuple toFiveTuple(final Socket sock) {
+        final SocketAddress local = sock.getLocalSocketAddress();
+        final SocketAddress remote = sock.getRemoteSocketAddress();
+        if (!(local instanceof InetSocketAddress) ||
+            !(remote instanceof InetSocketAddress)) {
+            return null;
+        }
+        return new FiveTuple((InetSocketAddress) local,
+            (InetSocketAddress) remote, FiveTuple.Protocol.TCP);
+    }
+
+    /**
+     * Returns a listener to notify of bytes relayed from the external socket
+     * to the server.
+     *
+     * @return The listener for incoming bytes.
+     */
+    public WriteListener getInListener() {
+        return this.in;
+    }
+
+    /**
+     * Returns a listener to notify of bytes relayed from the server to the
+     * external socket.
+     *
+     * @return The listener for outgoing bytes.
+     */
+    public WriteListener getOutListener() {
+        return this.out;
+    }
+
+    /**
+     * Removes the session from its registry once it's over. Calling this
+     * more than once is fine.
+     */
+    public void finished() {
+        this.finished = true;
+        this.registry.remove(this);
+    }
+
+    /**
+     * @return <code>true</code> if the session is over, otherwise
+     * <code>false</code>.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Closes both sockets, which ends the session.
+     */
+    public void kill() {
+        IOUtils.closeQuietly(this.relay);
+        IOUtils.closeQuietly(this.external);
+    }
+
+    /**
+     * @return The socket to the server.
+     */
+    Socket getRelaySocket() {
+        return relay;
+    }
+
+    /**
+     * Accessor for the id.
+     *
+     * @return The session id, unique within its registry.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Accessor for the addresses of the external socket.
+     *
+     * @return The five tuple of the external socket, or <code>null</code> if
+     * it wasn't connected over IP.
+     */
+    public FiveTuple getFiveTuple() {
+        return fiveTuple;
+    }
+
+    /**
+     * @return The bytes relayed from the external socket to the server.
+     */
+    public long getBytesIn() {
+        return this.in.bytes.get();
+    }
+
+    /**
+     * @return The bytes relayed from the server to the external socket.
+     */
+    public long getBytesOut() {
+        return this.out.bytes.get();
+    }
+
+    /**
+     * @return The bytes per second from the external socket over roughly
+     * the last second.
+     */
+    public long getRateIn() {
+        return this.in.rate();
+    }
+
+    /**
+     * @return The bytes per second to the external socket over roughly the
+     * last second.
+     */
+    public long getRateOut() {
+        return this.out.rate();
+    }
+
+    /**
+     * @return How long ago the session started, in milliseconds.
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - this.created;
+    }
+
+    /**
+     * @return When we last relayed data from the external socket, or when
+     * the session started if we haven't yet.
+     */
+    public long getLastInActivity() {
+        return this.in.lastActivity;
+    }
+
+    /**
+     * @return When we last relayed data to the external socket, or when
+     * the session started if we haven't yet.
+     */
+    public long getLastOutActivity() {
+        return this.out.lastActivity;
+    }
+
+    /**
+     * @return How long it's been since we relayed data either way, in
+     * milliseconds.
+     */
+    public long getIdleTime() {
+        return System.currentTimeMillis() -
+            Math.max(this.in.lastActivity, this.out.lastActivity);
+    }
+
+    @Override
+    public String toString() {
+        return "RelaySession [id=" + id + ", fiveTuple=" + fiveTuple +
+            ", bytesIn=" + getBytesIn() + ", bytesOut=" + getBytesOut() +
+            ", rateIn=" + getRateIn() + ", rateOut=" + getRateOut() +
+            ", age=" + getAge() + ", idle=" + getIdleTime() + "]";
+    }
+
+    /**
+     * Counts one direction of the session.
+     */
+    private final class Direction implements WriteListener {
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private volatile long lastActivity = created;
+
+        private volatile long windowStart = created;
+
+        private long windowBytes;
+
+        private long lastRate;
+
+        public void onBytesRead(final int bytesRead) {
+            final long total = this.bytes.addAndGet(bytesRead);
+            final long now = System.currentTimeMillis();
+            this.lastActivity = now;
+            if (now - this.windowStart >= RATE_WINDOW) {
+                synchronized (this) {
+                    final long elapsed = now - this.windowStart;
+                    if (elapsed >= RATE_WINDOW) {
+                        this.lastRate =
+                            (total - this.windowBytes) * 1000 / elapsed;
+                        this.windowStart = now;
+                        this.windowBytes = total;
+                    }
+                }
+            }
+        }
+
+        private synchronized long rate() {
+            final long elapsed = System.currentTimeMillis() - this.windowStart;
+            if (elapsed < 2 * RATE_WINDOW) {
+                return this.lastRate;
+            }
+            // Nothing's closed the window lately, so the rate has dropped.
+            return (this.bytes.get() - this.windowBytes) * 1000 / elapsed;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.littleshoot.util;
+
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of live relay sessions, keyed by id and by the {@link FiveTuple}
+ * of the external socket, so operators can see what's being relayed and
+ * kill sessions through JMX. This class is thread safe.
+ */
+public class RelaySessionRegistry implements RelaySessionRegistryMBean {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RelaySessionRegistry.class);
+
+    private static RelaySessionRegistry defaultRegistry;
+
+    private final ConcurrentMap<String, RelaySession> byId =
+        new ConcurrentHashMap<String, RelaySession>();
+
+    private final ConcurrentMap<FiveTuple, RelaySession> byFiveTuple =
+        new ConcurrentHashMap<FiveTuple, RelaySession>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Returns the registry shared by all relays that don't set their own,
+     * registering it with the platform MBean server the first time.
+     *
+     * @return The default registry.
+     */
+    public static synchronized RelaySessionRegistry getDefault() {
+        if (defaultRegistry == null) {
+            defaultRegistry = new RelaySessionRegistry();
+            try {
+                JmxUtils.register(ManagementFactory.getPlatformMBeanServer(),
+                    defaultRegistry);
+            } catch (final LinkageError e) {
+                // Some platforms, such as Android, don't have JMX.
+                LOG.debug("Could not register relay sessions", e);
+            }
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Adds a new session. If another live session already has the id, the
+     * new one gets a suffix to keep ids unique.
+     *
+     * @param id The id of the session.
+     * @param external The external socket.
+     * @param relay The socket to the server.
+     * @return The new session.
+     */
+    public RelaySession register(final String id, final Socket external,
+        final Socket relay) {
+        RelaySession session = new RelaySession(this, id, external, relay);
+        while (this.byId.putIfAbsent(session.getId(), session) != null) {
+            session = new RelaySession(this, id + "#" +
+                this.sequence.incrementAndGet(), external, relay);
+        }
+        if (session.getFiveTuple() != null) {
+            this.byFiveTuple.put(session.getFiveTuple(), session);
+        }
+        return session;
+    }
+
+    /**
+     * Removes a session that's finished. Removing a session twice is fine.
+     *
+     * @param session The session.
+     */
+    public void remove(final RelaySession session) {
+        if (this.byId.remove(session.getId(), session)) {
+            LOG.debug("Finished {}", session);
+        }
+        if (session.getFiveTuple() != null) {
+            this.byFiveTuple.remove(session.getFiveTuple(), session);
+        }
+    }
+
+    /**
+     * @param id The id of the session.
+     * @return The session, or <code>null</code> if there's no such live
+     * session.
+     */
+    public RelaySession get(final String id) {
+        return this.byId.get(id);
+    }
+
+    /**
+     * @param fiveTuple The addresses of the external socket.
+     * @return The session, or <code>null</code> if there's no such live
+     * session.
+     */
+    public RelaySession get(final FiveTuple fiveTuple) {
+        return this.byFiveTuple.get(fiveTuple);
+    }
+
+    /**
+     * @return All the live sessions.
+     */
+    public Collection<RelaySession> getAll() {
+        return Collections.unmodifiableCollection(this.byId.values());
+    }
+
+    public int getSessionCount() {
+        return this.byId.size();
+    }
+
+    public long getBytesIn() {
+        long total = 0;
+        for (final RelaySession session : this.byId.values()) {
+            total += session.getBytesIn();
+        }
+        return total;
+    }
+
+    public long getBytesOut() {
+        long total = 0;
+        for (final RelaySession session : this.byId.values()) {
+            total += session.getBytesOut();
+        }
+        return total;
+    }
+
+    public String[] getSessions() {
+        return describe(this.byId.values());
+    }
+
+    public String[] topSessionsByRate(final int count) {
+        // Rates change as we sort, so take them once up front.
+        final Map<RelaySession, Long> rates =
+            new IdentityHashMap<RelaySession, Long>();
+        for (final RelaySession session : this.byId.values()) {
+            rates.put(session,
+                Long.valueOf(session.getRateIn() + session.getRateOut()));
+        }
+        final List<RelaySession> sorted =
+            new ArrayList<RelaySession>(rates.keySet());
+        Collections.sort(sorted, new Comparator<RelaySession>() {
+            public int compare(final RelaySession s1, final RelaySession s2) {
+                return rates.get(s2).compareTo(rates.get(s1));
+            }
+        });
+        return describe(sorted.subList(0, Math.min(count, sorted.size())));
+    }
+
+    public String[] idleSessions(final long idleMillis) {
+        return describe(idle(idleMillis));
+    }
+
+    public String describeSession(final String id) {
+        final RelaySession session = this.byId.get(id);
+        return session == null ? null : session.toString();
+    }
+
+    public boolean killSession(final String id) {
+        final RelaySession session = this.byId.get(id);
+        if (session == null) {
+            return false;
+        }
+        LOG.info("Killing {}", session);
+        session.kill();
+        session.finished();
+        return true;
+    }
+
+    public int killIdleSessions(final long idleMillis) {
+        final List<RelaySession> idle = idle(idleMillis);
+        for (final RelaySession session : idle) {
+            LOG.info("Killing idle {}", session);
+            session.kill();
+            session.finished();
+        }
+        return idle.size();
+    }
+
+    private List<RelaySession> idle(final long idleMillis) {
+        final List<RelaySession> idle = new ArrayList<RelaySession>();
+        for (final RelaySession session : this.byId.values()) {
+            if (session.getIdleTime() >= idleMillis) {
+                idle.add(session);
+            }
+        }
+        return idle;
+    }
+
+    private static String[] describe(final Collection<RelaySession> sessions) {
+        final List<String> descriptions = new ArrayList<String>();
+        for (final RelaySession session : sessions) {
+            descriptions.add(session.toString());
+        }
+        return descriptions.toArray(new String[descriptions.size()]);
+    }
+}
@@ -0,0 +1,67 @@
+package org.littleshoot.util;
+
+/**
+ * JMX view of {@link RelaySessionRegistry}.
+ */
+public interface RelaySessionRegistryMBean {
+
+    /**
+     * @return The number of live sessions.
+     */
+    int getSessionCount();
+
+    /**
+     * @return The total bytes relayed from external sockets by live
+     * sessions.
+     */
+    long getBytesIn();
+
+    /**
+     * @return The total bytes relayed to external sockets by live sessions.
+     */
+    long getBytesOut();
+
+    /**
+     * @return A description of every live session.
+     */
+    String[] getSessions();
+
+    /**
+     * @param count The most sessions to return.
+     * @return The sessions with the highest combined current rate, highest
+     * first.
+     */
+    String[] topSessionsByRate(int count);
+
+    /**
+     * @param idleMillis How long a session must have been idle.
+     * @return The sessions that haven't relayed anything for at least the
+     * specified time.
+     */
+    String[] idleSessions(long idleMillis);
+
+    /**
+     * @param id The id of the session.
+     * @return A description of the session, or <code>null</code> if there's
+     * no such session.
+     */
+    String describeSession(String id);
+
+    /**
+     * Closes the sockets of the specified session.
+     *
+     * @param id The id of the session.
+     * @return <code>true</code> if there was such a session, otherwise
+     * <code>false</code>.
+     */
+    boolean killSession(String id);
+
+    /**
+     * Closes the sockets of every session idle for at least the specified
+     * time.
+     *
+     * @param idleMillis How long a session must have been idle.
+     * @return The number of sessions killed.
+     */
+    int killIdleSessions(long idleMillis);
+}
@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -18,19 +19,40 @@ public class RelayingSocketHandler implements SessionSocketListener {
     private final Logger log = LoggerFactory.getLogger(getClass());
     
     /**
-     * The default small buffer size to use.  This is smaller because HTTP
-     * requests aren't typically that big.
+     * The default small buffer size to start with.  This is smaller because
+     * HTTP requests aren't typically that big.
      */
     private static final int SMALL_BUFFER_SIZE = 1024 * 4;
     
     /**
-     * The default buffer size to use. This is the same size Jetty uses -- 
-     * bigger because we're typically serving files.
+     * The default buffer size to start with. This is the same size Jetty 
+     * uses -- bigger because we're typically serving files.
      */
     private static final int LARGE_BUFFER_SIZE = 1024 * 16;
 
     private final InetSocketAddress serverAddress;
 
+    private final BackendSelector backendSelector;
+
+    private volatile ThreadFactory threadFactory;
+
+    private volatile AdaptiveBufferSizer bufferSizer;
+
+    private volatile WarmSocketPool socketPool;
+
+    private volatile TokenBucket uploadBucket;
+
+    private volatile long sessionUploadRate;
+
+    private volatile TokenBucket downloadBucket;
+
+    private volatile long sessionDownloadRate;
+
+    private volatile RelaySessionRegistry sessionRegistry = 
+        RelaySessionRegistry.getDefault();
+
+    private volatile IdleSessionReaper idleReaper;
+
     //private final byte[] readKey;
 
     //private final byte[] writeKey;
@@ -53,13 +75,135 @@ public class RelayingSocketHandler implements SessionSocketListener {
      */
     public RelayingSocketHandler(final InetSocketAddress serverAddress) {
         this.serverAddress = serverAddress;
+        this.backendSelector = null;
         //this.readKey = readKey;
         //this.writeKey = writeKey;
     }
 
+    /**
+     * Creates a new socket handler that spreads sessions across several
+     * servers. Any socket pool is ignored, as pools only hold connections
+     * to a single server.
+     * 
+     * @param backendSelector The selector that picks the server for each
+     * session.
+     */
+    public RelayingSocketHandler(final BackendSelector backendSelector) {
+        this.serverAddress = null;
+        this.backendSelector = backendSelector;
+    }
+
+    /**
+     * Sets the factory for the threads that copy data in each direction.
+     * Passing {@link ThreadUtils#newVirtualThreadFactory(String)} runs the
+     * copies on virtual threads where the JVM has them, which lets this
+     * handler scale to many more sessions. Defaults to daemon platform
+     * threads.
+     * 
+     * @param threadFactory The thread factory, or <code>null</code> for the
+     * default.
+     */
+    public void setThreadFactory(final ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Sets the sizer for the copy buffers. Buffers start at the default
+     * sizes and then follow the traffic within the sizer's budget, such as
+     * that of {@link AdaptiveBufferSizer#getDefault()}. By default buffers
+     * stay at fixed sizes.
+     * 
+     * @param bufferSizer The buffer sizer, or <code>null</code> to keep the
+     * default sizes fixed.
+     */
+    public void setBufferSizer(final AdaptiveBufferSizer bufferSizer) {
+        this.bufferSizer = bufferSizer;
+    }
+
+    /**
+     * Sets a pool of ready connections to the server, so sessions don't
+     * wait on a new connection. The pool should be for the same server
+     * address as this handler, and can't
+     * {@link WarmSocketPool#usesChannels() use channels}, as a blocked read
+     * on a channel socket can hold up writes on older JVMs.
+     * 
+     * @param socketPool The pool, or <code>null</code> to connect for each
+     * session.
+     */
+    public void setSocketPool(final WarmSocketPool socketPool) {
+        if (socketPool != null && socketPool.usesChannels()) {
+            throw new IllegalArgumentException(
+                "Can't relay with threads over channel sockets");
+        }
+        this.socketPool = socketPool;
+    }
+
+    /**
+     * Limits how fast we send data from the server to the external socket,
+     * which is typically us uploading files.
+     * 
+     * @param bucket The bucket shared by all sessions, such as one from
+     * {@link CommonUtils#newUploadBucket()}, or <code>null</code> for no
+     * overall limit.
+     * @param perSessionRate The most bytes per second for each session, or
+     * zero for no per session limit.
+     */
+    public void setUploadLimit(final TokenBucket bucket, 
+        final long perSessionRate) {
+        this.uploadBucket = bucket;
+        this.sessionUploadRate = perSessionRate;
+    }
+
+    /**
+     * Limits how fast we send data from the external socket to the server.
+     * 
+     * @param bucket The bucket shared by all sessions, or <code>null</code>
+     * for no overall limit.
+     * @param perSessionRate The most bytes per second for each session, or
+     * zero for no per session limit.
+     */
+    public void setDownloadLimit(final TokenBucket bucket, 
+        final long perSessionRate) {
+        this.downloadBucket = bucket;
+        this.sessionDownloadRate = perSessionRate;
+    }
+
+    /**
+     * Sets the registry that tracks our live sessions. Defaults to
+     * {@link RelaySessionRegistry#getDefault()}, which is visible over JMX.
+     * 
+     * @param sessionRegistry The session registry.
+     */
+    public void setSessionRegistry(
+        final RelaySessionRegistry sessionRegistry) {
+        this.sessionRegistry = sessionRegistry;
+    }
+
+    /**
+     * Sets the reaper that closes idle sessions. Without one, reads from 
+     * the server time out after five minutes, and nothing times out reads
+     * from the external socket.
+     * 
+     * @param idleReaper The reaper, or <code>null</code> for the read
+     * timeout.
+     */
+    public void setIdleReaper(final IdleSessionReaper idleReaper) {
+        this.idleReaper = idleReaper;
+    }
+
+    private static TokenBucket sessionBucket(final TokenBucket global, 
+        final long perSessionRate) {
+        if (perSessionRate > 0) {
+            return new TokenBucket(perSessionRate, global);
+        }
+        return global;
+    }
+
     public void onSocket(final String id, final Socket encryptedSocket) 
         throws IOException {
-        log.info("Relaying socket connecting to: {}", this.serverAddress);
+        log.info("Relaying socket connecting to: {}", 
+            this.backendSelector == null ? 
+                this.serverAddress : this.backendSelector);
         
         /*
         final Socket sock;
@@ -75,33 +219,76 @@ public class RelayingSocketHandler implements SessionSocketListener {
         }
         */
             
-        final Socket relay = new Socket();
-        relay.connect(this.serverAddress, 30 * 1000);
-
-        // We set this relatively low because we're accessing a file from the
-        // HTTP server and expect the server to be doing most of the sending.
-        relay.setSoTimeout(300 * 1000);
-
-        final OutputStream externalOs = encryptedSocket.getOutputStream();
-        final InputStream externalIs = encryptedSocket.getInputStream();
-        final OutputStream relayOs = relay.getOutputStream();
-        final InputStream relayIs = relay.getInputStream();
-
-        // Thread the reads and the writes. "Reads" and "writes" of course
-        // depend on what connection you're taking the perspective of, but
-        // it doesn't really matter.
-        threadedCopy(externalIs, relayOs, "ReadFromExternal", 
-            SMALL_BUFFER_SIZE, encryptedSocket);
-        threadedCopy(relayIs, externalOs, "WriteToExternal", 
-            LARGE_BUFFER_SIZE, encryptedSocket);
+        final WarmSocketPool pool = this.socketPool;
+        final Socket relay;
+        if (this.backendSelector != null) {
+            relay = this.backendSelector.connect(30 * 1000);
+        } else if (pool == null) {
+            relay = new Socket();
+            relay.connect(this.serverAddress, 30 * 1000);
+        } else {
+            relay = pool.take();
+        }
+
+        // Once the copy threads are running they clean up after themselves,
+        // but until then a failure has to give back the relay socket.
+        RelaySession session = null;
+        boolean started = false;
+        try {
+            final IdleSessionReaper reaper = this.idleReaper;
+            if (reaper == null) {
+                // We set this relatively low because we're accessing a file
+                // from the HTTP server and expect the server to be doing most
+                // of the sending.
+                relay.setSoTimeout(300 * 1000);
+            }
+
+            final OutputStream externalOs = 
+                encryptedSocket.getOutputStream();
+            final InputStream externalIs = encryptedSocket.getInputStream();
+            final OutputStream relayOs = relay.getOutputStream();
+            final InputStream relayIs = relay.getInputStream();
+
+            session = 
+                this.sessionRegistry.register(id, encryptedSocket, relay);
+            log.debug("Started {}", session);
+            if (reaper != null) {
+                reaper.add(session);
+            }
+
+            // Thread the reads and the writes. "Reads" and "writes" of
+            // course depend on what connection you're taking the perspective
+            // of, but it doesn't really matter.
+            threadedCopy(externalIs, relayOs, "ReadFromExternal", 
+                SMALL_BUFFER_SIZE, encryptedSocket, 
+                sessionBucket(this.downloadBucket, this.sessionDownloadRate),
+                session.getInListener(), session);
+            threadedCopy(relayIs, externalOs, "WriteToExternal", 
+                LARGE_BUFFER_SIZE, encryptedSocket,
+                sessionBucket(this.uploadBucket, this.sessionUploadRate),
+                session.getOutListener(), session);
+            started = true;
+        } finally {
+            if (!started) {
+                IOUtils.closeQuietly(relay);
+                if (session != null) {
+                    session.finished();
+                }
+                if (this.backendSelector != null) {
+                    this.backendSelector.release(relay);
+                }
+            }
+        }
     }
 
     private void threadedCopy(final InputStream is, final OutputStream os,
-        final String threadNameId, final int bufferSize, final Socket sock) {
+        final String threadNameId, final int bufferSize, final Socket sock,
+        final TokenBucket bucket, final WriteListener listener,
+        final RelaySession session) {
         final Runnable runner = new Runnable() {
             public void run() {
                 try {
-                    copyLarge(is, os, bufferSize);
+                    copyLarge(is, os, bufferSize, bucket, listener);
                 } catch (final IOException e) {
                     // This will happen if the other side just closes the
                     // socket, for example.
@@ -121,13 +308,24 @@ public class RelayingSocketHandler implements SessionSocketListener {
                     // This happens on JVM shutdown, for example.
                     log.info("Closing socket...already closed streams...");
                     IOUtils.closeQuietly(sock);
+                    session.finished();
+                    if (backendSelector != null) {
+                        backendSelector.release(session.getRelaySocket());
+                    }
                 }
             }
         };
-        final Thread thread = new Thread(runner,
-                "RelayingSocketHandler-Thread-" + threadNameId + "-"
-                        + runner.hashCode());
-        thread.setDaemon(true);
+        final String name = "RelayingSocketHandler-Thread-" + threadNameId + 
+            "-" + runner.hashCode();
+        final ThreadFactory tf = this.threadFactory;
+        final Thread thread;
+        if (tf == null) {
+            thread = new Thread(runner, name);
+            thread.setDaemon(true);
+        } else {
+            thread = tf.newThread(runner);
+            thread.setName(name);
+        }
         thread.start();
     }
 
@@ -144,23 +342,52 @@ public class RelayingSocketHandler implements SessionSocketListener {
      * 
      * @param input  the <code>InputStream</code> to read from
      * @param output  the <code>OutputStream</code> to write to
-     * @param bufferSize The size of the buffer to use.
+     * @param bufferSize The size of the buffer to start with.
+     * @param bucket The bucket to shape the copy with, or <code>null</code>
+     * to copy as fast as possible.
+     * @param listener The listener for the bytes we copy.
      * @return the number of bytes copied
      * @throws NullPointerException if the input or output is null
      * @throws IOException if an I/O error occurs
      * @since Commons IO 1.3
      */
     private long copyLarge(final InputStream input, final OutputStream output,
-            final int bufferSize) throws IOException {
-        final byte[] buffer = new byte[bufferSize];
-        long count = 0;
-        int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+            final int bufferSize, final TokenBucket bucket, 
+            final WriteListener listener) throws IOException {
+        final AdaptiveBufferSizer sizer = this.bufferSizer;
+        if (sizer == null) {
+            final byte[] buffer = new byte[bufferSize];
+            long count = 0;
+            int n = 0;
+            while (-1 != (n = input.read(buffer))) {
+                if (bucket != null) {
+                    bucket.acquire(n);
+                }
+                output.write(buffer, 0, n);
+                listener.onBytesRead(n);
+                count += n;
+            }
+            log.debug("Copied bytes: {}", count);
+            return count;
+        }
+        final AdaptiveBuffer buffer = sizer.newBuffer(bufferSize);
+        try {
+            long count = 0;
+            int n = 0;
+            while (-1 != (n = input.read(buffer.array()))) {
+                if (bucket != null) {
+                    bucket.acquire(n);
+                }
+                output.write(buffer.array(), 0, n);
+                listener.onBytesRead(n);
+                count += n;
+                buffer.onRead(n);
+            }
+            log.debug("Copied bytes: {} ending with {}", count, buffer);
+            return count;
+        } finally {
+            buffer.release();
         }
-        log.debug("Copied bytes: {}", count);
-        return count;
     }
 
     @Override
@@ -0,0 +1,630 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Socket handler that relays data to a server socket like
+ * {@link RelayingSocketHandler}, but multiplexes all sessions over a small
+ * pool of selector threads instead of using two threads per session.
+ * <p>
+ * Both ends of a session are non-blocking channels. Each direction has a
+ * single buffer, and we stop reading from one side while the other side
+ * hasn't accepted everything we've read so far, so a slow reader throttles
+ * the writer through TCP flow control rather than through a blocked thread.
+ * <p>
+ * Plain sockets need to have been created with a channel, and
+ * {@link CipherSocket}s need to wrap such a socket. Nothing should have been
+ * read from the socket's streams before it's handed to us, as data buffered
+ * in them is lost. Any other socket, such as an SSL socket, is relayed with
+ * threads by a {@link RelayingSocketHandler}.
+ * <p>
+ * With a {@link DirectBufferPool} data moves between the channels through
+ * pooled direct buffers, so it's never copied onto the heap, and a
+ * direction only holds a buffer while it has data in flight. Idle sessions
+ * then cost no buffer memory at all, and the total is bounded by the pool.
+ * Sessions that find the pool empty wait for a buffer to come free.
+ */
+public class SelectorRelayingSocketHandler implements SessionSocketListener {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The buffer size for data from the external socket.  This is smaller
+     * because HTTP requests aren't typically that big.
+     */
+    private static final int SMALL_BUFFER_SIZE = 1024 * 4;
+
+    /**
+     * The buffer size for data from the relay -- bigger because we're
+     * typically serving files.
+     */
+    private static final int LARGE_BUFFER_SIZE = 1024 * 16;
+
+    /**
+     * How long a session can go without reading anything before we close
+     * it. This is the same as the read timeout of the threaded relay.
+     */
+    private static final long IDLE_TIMEOUT = 300 * 1000;
+
+    /**
+     * How often each selector thread checks for idle sessions.
+     */
+    private static final long SWEEP_INTERVAL = 10 * 1000;
+
+    /**
+     * The most reads we'll do on one direction of a session before moving
+     * on to other sessions, so one busy session can't starve the rest.
+     */
+    private static final int MAX_READS_PER_PASS = 16;
+
+    /**
+     * How long to wait before trying again to get a pooled buffer when
+     * they're all in use.
+     */
+    private static final long STARVED_RETRY = 10;
+
+    private final InetSocketAddress serverAddress;
+
+    private final RelayingSocketHandler fallback;
+
+    private final RelaySelector[] selectors;
+
+    private final AtomicInteger nextSelector = new AtomicInteger();
+
+    private volatile DirectBufferPool bufferPool;
+
+    private volatile WarmSocketPool socketPool;
+
+    private boolean started = false;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a new socket handler with one selector thread for every two
+     * processors.
+     *
+     * @param serverAddress The address of the server to relay to.
+     */
+    public SelectorRelayingSocketHandler(
+        final InetSocketAddress serverAddress) {
+        this(serverAddress,
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Creates a new socket handler.
+     *
+     * @param serverAddress The address of the server to relay to.
+     * @param selectorThreads The number of selector threads to share the
+     * sessions between.
+     */
+    public SelectorRelayingSocketHandler(
+        final InetSocketAddress serverAddress, final int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException(
+                "Need at least one selector thread: " + selectorThreads);
+        }
+        this.serverAddress = serverAddress;
+        this.fallback = new RelayingSocketHandler(serverAddress);
+        this.selectors = new RelaySelector[selectorThreads];
+    }
+
+    /**
+     * Sets the pool to take relay buffers from. This only applies to
+     * sessions that start after the call. By default each session
+     * allocates its own heap buffers.
+     *
+     * @param bufferPool The buffer pool, or <code>null</code> to allocate
+     * buffers per session.
+     */
+    public void setBufferPool(final DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Sets a pool of ready connections to the server, so sessions don't
+     * wait on a new connection. A pool that
+     * {@link WarmSocketPool#usesChannels() uses channels} is used for
+     * sessions on our selectors, and any other pool is used for sessions
+     * relayed with threads, as those can't share a channel socket between
+     * their reading and writing threads.
+     *
+     * @param socketPool The pool, or <code>null</code> to connect for each
+     * session.
+     */
+    public void setSocketPool(final WarmSocketPool socketPool) {
+        if (socketPool == null || socketPool.usesChannels()) {
+            this.socketPool = socketPool;
+            this.fallback.setSocketPool(null);
+        } else {
+            this.socketPool = null;
+            this.fallback.setSocketPool(socketPool);
+        }
+    }
+
+    public void onSocket(final String id, final Socket sock)
+        throws IOException {
+        final Endpoint external = toEndpoint(sock);
+        if (external == null) {
+            log.debug("No channel for socket, relaying with threads");
+            this.fallback.onSocket(id, sock);
+            return;
+        }
+        log.info("Relaying socket connecting to: {}", this.serverAddress);
+        final RelaySelector selector = nextSelector();
+        final WarmSocketPool pool = this.socketPool;
+        final SocketChannel relay;
+        if (pool == null) {
+            relay = SocketChannel.open();
+        } else {
+            relay = pool.take().getChannel();
+        }
+        try {
+            if (!relay.isConnected()) {
+                relay.socket().connect(this.serverAddress, 30 * 1000);
+            }
+            relay.configureBlocking(false);
+            external.channel.configureBlocking(false);
+        } catch (final IOException e) {
+            IOUtils.closeQuietly(relay);
+            throw e;
+        }
+        selector.add(new Session(id, sock, external,
+            new Endpoint(relay, relay, null), this.bufferPool));
+    }
+
+    private Endpoint toEndpoint(final Socket sock) {
+        if (sock instanceof CipherSocket) {
+            final CipherChannel cc = ((CipherSocket) sock).getCipherChannel();
+            if (cc == null) {
+                return null;
+            }
+            return new Endpoint(cc.getChannel(), cc, cc);
+        }
+        final SocketChannel channel = sock.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        return new Endpoint(channel, channel, null);
+    }
+
+    private synchronized RelaySelector nextSelector() throws IOException {
+        if (this.closed) {
+            throw new IOException("Relay is closed");
+        }
+        if (!this.started) {
+            for (int i = 0; i < this.selectors.length; i++) {
+                this.selectors[i] = new RelaySelector(Selector.open());
+                final Thread thread = new DaemonThread(this.selectors[i],
+                    "SelectorRelayingSocketHandler-Thread-" + i + "-" +
+                    hashCode());
+                thread.start();
+            }
+            this.started = true;
+        }
+        final int index = (nextSelector.getAndIncrement() & Integer.MAX_VALUE)
+            % this.selectors.length;
+        return this.selectors[index];
+    }
+
+    /**
+     * Stops the selector threads and closes all the sessions they're
+     * relaying. Sessions relayed with threads aren't affected.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        if (!this.started) {
+            return;
+        }
+        for (final RelaySelector selector : this.selectors) {
+            selector.close();
+        }
+    }
+
+    @Override
+    public void reconnected() {
+    }
+
+    /**
+     * A selector and the thread that services it.
+     */
+    private final class RelaySelector implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<Session> added =
+            new ConcurrentLinkedQueue<Session>();
+
+        /**
+         * Sessions with decrypted data the selector doesn't know about.
+         */
+        private final Set<Session> ready = new HashSet<Session>();
+
+        /**
+         * Sessions waiting for a pooled buffer.
+         */
+        private final Set<Session> starved = new HashSet<Session>();
+
+        private volatile boolean running = true;
+
+        private long lastSweep = System.currentTimeMillis();
+
+        private RelaySelector(final Selector selector) {
+            this.selector = selector;
+        }
+
+        private void add(final Session session) {
+            this.added.add(session);
+            this.selector.wakeup();
+        }
+
+        private void close() {
+            this.running = false;
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            final Set<Session> toProcess = new LinkedHashSet<Session>();
+            try {
+                while (this.running) {
+                    if (!this.ready.isEmpty()) {
+                        this.selector.selectNow();
+                    } else if (!this.starved.isEmpty()) {
+                        this.selector.select(STARVED_RETRY);
+                    } else {
+                        this.selector.select(SWEEP_INTERVAL);
+                    }
+                    registerAdded(toProcess);
+                    final Iterator<SelectionKey> keys =
+                        this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        toProcess.add((Session) keys.next().attachment());
+                        keys.remove();
+                    }
+                    toProcess.addAll(this.ready);
+                    toProcess.addAll(this.starved);
+                    this.ready.clear();
+                    this.starved.clear();
+                    for (final Session session : toProcess) {
+                        if (session.process()) {
+                            this.ready.add(session);
+                        } else if (session.isStarved()) {
+                            this.starved.add(session);
+                        }
+                    }
+                    toProcess.clear();
+                    sweep();
+                }
+            } catch (final IOException e) {
+                log.warn("Error selecting", e);
+            } catch (final Throwable t) {
+                log.error("Unexpected error relaying", t);
+            } finally {
+                for (final SelectionKey key : this.selector.keys()) {
+                    ((Session) key.attachment()).close();
+                }
+                Session session;
+                while ((session = this.added.poll()) != null) {
+                    session.close();
+                }
+                IOUtils.closeQuietly(this.selector);
+            }
+        }
+
+        private void registerAdded(final Set<Session> toProcess) {
+            Session session;
+            while ((session = this.added.poll()) != null) {
+                try {
+                    session.register(this.selector);
+                    // There may already be data we can't see, such as
+                    // records that arrived with the handshake.
+                    toProcess.add(session);
+                } catch (final IOException e) {
+                    log.debug("Could not register session", e);
+                    session.close();
+                }
+            }
+        }
+
+        private void sweep() {
+            final long now = System.currentTimeMillis();
+            if (now - this.lastSweep < SWEEP_INTERVAL) {
+                return;
+            }
+            this.lastSweep = now;
+            final Set<Session> idle = new HashSet<Session>();
+            for (final SelectionKey key : this.selector.keys()) {
+                final Session session = (Session) key.attachment();
+                if (now - session.lastActivity > IDLE_TIMEOUT) {
+                    idle.add(session);
+                }
+            }
+            for (final Session session : idle) {
+                log.debug("Closing idle session {}", session.id);
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * One end of a session.
+     */
+    private static final class Endpoint {
+
+        private final SocketChannel channel;
+
+        /**
+         * The channel to read and write through, which encrypts for
+         * cipher sockets.
+         */
+        private final ByteChannel io;
+
+        private final CipherChannel cipher;
+
+        private SelectionKey key;
+
+        private Endpoint(final SocketChannel channel, final ByteChannel io,
+            final CipherChannel cipher) {
+            this.channel = channel;
+            this.io = io;
+            this.cipher = cipher;
+        }
+
+        private boolean flush() throws IOException {
+            return this.cipher == null || this.cipher.flush();
+        }
+
+        private boolean hasPendingOutput() {
+            return this.cipher != null && this.cipher.hasPendingOutput();
+        }
+
+        private boolean hasBufferedInput() {
+            return this.cipher != null && this.cipher.hasBufferedInput();
+        }
+    }
+
+    /**
+     * Relays data from one end of a session to the other.
+     */
+    private static final class Direction {
+
+        private final Session session;
+
+        private final Endpoint src;
+
+        private final Endpoint dst;
+
+        private final DirectBufferPool pool;
+
+        private final int bufferSize;
+
+        /**
+         * Data read from the source that the destination hasn't taken yet.
+         * Always left ready for reading into. Pooled buffers are only held
+         * while they have data in them, and are <code>null</code> otherwise.
+         */
+        private ByteBuffer buf;
+
+        private boolean eof = false;
+
+        private boolean shutdown = false;
+
+        private boolean starved = false;
+
+        private Direction(final Session session, final Endpoint src,
+            final Endpoint dst, final DirectBufferPool pool,
+            final int bufferSize) {
+            this.session = session;
+            this.src = src;
+            this.dst = dst;
+            this.pool = pool;
+            this.bufferSize = bufferSize;
+        }
+
+        private void pump() throws IOException {
+            for (int i = 0; i < MAX_READS_PER_PASS; i++) {
+                if (hasData()) {
+                    this.buf.flip();
+                    this.dst.io.write(this.buf);
+                    this.buf.compact();
+                }
+                if (!this.dst.flush() || hasData()) {
+                    // The destination is full, so stop reading until it
+                    // drains.
+                    return;
+                }
+                if (this.eof) {
+                    if (!this.shutdown) {
+                        this.dst.channel.socket().shutdownOutput();
+                        this.shutdown = true;
+                    }
+                    return;
+                }
+                if (!acquireBuffer()) {
+                    return;
+                }
+                final int read = this.src.io.read(this.buf);
+                if (read > 0) {
+                    this.session.lastActivity = System.currentTimeMillis();
+                    continue;
+                }
+                releaseBuffer();
+                if (read == 0) {
+                    return;
+                }
+                this.eof = true;
+            }
+        }
+
+        private boolean acquireBuffer() {
+            if (this.buf != null) {
+                return true;
+            }
+            if (this.pool == null) {
+                this.buf = ByteBuffer.allocate(this.bufferSize);
+                return true;
+            }
+            this.buf = this.pool.tryAcquire();
+            this.starved = this.buf == null;
+            return !this.starved;
+        }
+
+        /**
+         * Gives an empty buffer back to the pool, if it came from one.
+         */
+        private void releaseBuffer() {
+            if (this.pool != null && this.buf != null) {
+                this.pool.release(this.buf);
+                this.buf = null;
+            }
+        }
+
+        private boolean hasData() {
+            return this.buf != null && this.buf.position() > 0;
+        }
+
+        private boolean wantsRead() {
+            return !this.eof && !this.starved && !hasData() &&
+                !this.dst.hasPendingOutput();
+        }
+
+        private boolean wantsWrite() {
+            return hasData() || this.dst.hasPendingOutput();
+        }
+
+        /**
+         * Whether we could read more without the selector telling us,
+         * because the source has already decrypted it.
+         */
+        private boolean isReady() {
+            return wantsRead() && this.src.hasBufferedInput();
+        }
+
+        private boolean isDone() {
+            return this.shutdown;
+        }
+    }
+
+    /**
+     * A relayed socket and its connection to the server.
+     */
+    private final class Session {
+
+        private final String id;
+
+        private final Socket sock;
+
+        private final Endpoint external;
+
+        private final Endpoint relay;
+
+        private final Direction fromExternal;
+
+        private final Direction toExternal;
+
+        private long lastActivity = System.currentTimeMillis();
+
+        private Session(final String id, final Socket sock,
+            final Endpoint external, final Endpoint relay,
+            final DirectBufferPool pool) {
+            this.id = id;
+            this.sock = sock;
+            this.external = external;
+            this.relay = relay;
+            this.fromExternal = new Direction(this, external, relay, pool,
+                SMALL_BUFFER_SIZE);
+            this.toExternal = new Direction(this, relay, external, pool,
+                LARGE_BUFFER_SIZE);
+        }
+
+        private void register(final Selector selector) throws IOException {
+            this.external.key =
+                this.external.channel.register(selector, 0, this);
+            this.relay.key = this.relay.channel.register(selector, 0, this);
+        }
+
+        /**
+         * Moves as much data as we can in both directions and updates what
+         * we're waiting for.
+         *
+         * @return <code>true</code> if there's more data to read that the
+         * selector won't tell us about, otherwise <code>false</code>.
+         */
+        private boolean process() {
+            if (!this.relay.channel.isOpen()) {
+                return false;
+            }
+            try {
+                this.fromExternal.pump();
+                this.toExternal.pump();
+                if (this.fromExternal.isDone() && this.toExternal.isDone()) {
+                    log.debug("Finished relaying session {}", this.id);
+                    close();
+                    return false;
+                }
+                this.external.key.interestOps(
+                    interestOps(this.fromExternal, this.toExternal));
+                this.relay.key.interestOps(
+                    interestOps(this.toExternal, this.fromExternal));
+                return this.fromExternal.isReady() ||
+                    this.toExternal.isReady();
+            } catch (final IOException e) {
+                // This will happen if the other side just closes the
+                // socket, for example.
+                log.debug("Error relaying session " + this.id, e);
+            } catch (final CancelledKeyException e) {
+                log.debug("Session closed: {}", this.id);
+            } catch (final RuntimeException e) {
+                // Records that don't verify, for example.
+                log.warn("Error relaying session " + this.id, e);
+            }
+            close();
+            return false;
+        }
+
+        private boolean isStarved() {
+            return this.relay.channel.isOpen() &&
+                (this.fromExternal.starved || this.toExternal.starved);
+        }
+
+        private int interestOps(final Direction reading,
+            final Direction writing) {
+            int ops = 0;
+            if (reading.wantsRead()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writing.wantsWrite()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+
+        private void close() {
+            IOUtils.closeQuietly(this.relay.channel);
+            IOUtils.closeQuietly(this.external.channel);
+            IOUtils.closeQuietly(this.sock);
+            // Any data still in the buffers is lost anyway.
+            this.fromExternal.releaseBuffer();
+            this.toExternal.releaseBuffer();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes a sequence of encrypted records in constant memory, handing the
+ * plain text of each verified record to a sink as soon as it's decoded.
+ * Only one record's worth of encoded data and plain text is ever held, no
+ * matter how big the whole payload is.
+ * <p>
+ * Plain text is passed to {@link Closure} sinks in a buffer that's reused
+ * for the next record, so sinks have to consume or copy it before they
+ * return. Instances aren't thread safe.
+ */
+public class StreamingRecordDecoder {
+
+    private final RecordCodec codec;
+
+    /**
+     * Encoded bytes that don't make up a full record yet. Always left ready
+     * for more data.
+     */
+    private final ByteBuffer pending;
+
+    private final ByteBuffer plain;
+
+    /**
+     * Creates a new decoder for the specified key.
+     *
+     * @param key The key to decrypt with.
+     */
+    public StreamingRecordDecoder(final byte[] key) {
+        this(new RecordCodec(key));
+    }
+
+    /**
+     * Creates a new decoder with the specified codec, for example to accept
+     * jumbo records.
+     *
+     * @param codec The codec to decrypt with.
+     */
+    public StreamingRecordDecoder(final RecordCodec codec) {
+        this.codec = codec;
+        this.pending = ByteBuffer.allocate(codec.maxRecordLength());
+        this.plain = ByteBuffer.allocate(codec.maxRecordLength());
+    }
+
+    /**
+     * Decodes all the records in the specified stream, writing the plain
+     * text to the output stream.
+     *
+     * @param is The stream of encoded records.
+     * @param os The stream to write plain text to.
+     * @return The number of plain text bytes written.
+     * @throws IOException If there's an error reading or writing, or if
+     * the input ends in the middle of a record.
+     */
+    public long decode(final InputStream is, final OutputStream os)
+        throws IOException {
+        final Sink sink = new Sink() {
+            @Override
+            void write(final ByteBuffer buf) throws IOException {
+                os.write(buf.array(), buf.position(), buf.remaining());
+            }
+        };
+        long total = 0;
+        final byte[] array = this.pending.array();
+        while (true) {
+            final int read = is.read(array, this.pending.position(),
+                this.pending.remaining());
+            if (read == -1) {
+                break;
+            }
+            this.pending.position(this.pending.position() + read);
+            total += decodePending(sink);
+        }
+        checkFinished();
+        return total;
+    }
+
+    /**
+     * Decodes all the records in the specified channel. The channel should
+     * be blocking.
+     *
+     * @param channel The channel of encoded records.
+     * @param sink The sink for plain text.
+     * @return The number of plain text bytes passed to the sink.
+     * @throws IOException If there's an error reading, or if the input
+     * ends in the middle of a record.
+     */
+    public long decode(final ReadableByteChannel channel,
+        final Closure<ByteBuffer> sink) throws IOException {
+        final Sink closureSink = new ClosureSink(sink);
+        long total = 0;
+        while (channel.read(this.pending) != -1) {
+            total += decodePending(closureSink);
+        }
+        checkFinished();
+        return total;
+    }
+
+    /**
+     * Decodes all the records in the specified buffers. Records may be
+     * split across buffers in any way.
+     *
+     * @param buffers The encoded records.
+     * @param sink The sink for plain text.
+     * @return The number of plain text bytes passed to the sink.
+     * @throws IllegalArgumentException If a record doesn't verify or the
+     * last buffer ends in the middle of a record.
+     */
+    public long decode(final Iterable<ByteBuffer> buffers,
+        final Closure<ByteBuffer> sink) {
+        long total = 0;
+        for (final ByteBuffer buf : buffers) {
+            total += update(buf, sink);
+        }
+        if (this.pending.position() > 0) {
+            throw new IllegalArgumentException("Input ended mid-record");
+        }
+        return total;
+    }
+
+    /**
+     * Decodes all the complete records in the specified data, holding onto
+     * any trailing partial record until more data arrives. Whole records
+     * are decoded straight from the caller's buffer when there's no
+     * partial record pending.
+     *
+     * @param data The next encoded bytes.
+     * @param sink The sink for plain text.
+     * @return The number of plain text bytes passed to the sink.
+     */
+    public long update(final ByteBuffer data,
+        final Closure<ByteBuffer> sink) {
+        final Sink closureSink = new ClosureSink(sink);
+        long total = 0;
+        try {
+            while (data.hasRemaining()) {
+                if (this.pending.position() == 0) {
+                    total += decodeRecords(data, closureSink);
+                    if (!data.hasRemaining()) {
+                        break;
+                    }
+                }
+                final int toCopy =
+                    Math.min(data.remaining(), this.pending.remaining());
+                final int limit = data.limit();
+                data.limit(data.position() + toCopy);
+                this.pending.put(data);
+                data.limit(limit);
+                total += decodePending(closureSink);
+            }
+        } catch (final IOException e) {
+            // Closure sinks don't throw these.
+            throw new RuntimeIoException(e);
+        }
+        return total;
+    }
+
+    /**
+     * Returns whether or not a partial record is waiting for more data.
+     *
+     * @return <code>true</code> if there's a partial record, otherwise
+     * <code>false</code>.
+     */
+    public boolean hasPartialRecord() {
+        return this.pending.position() > 0;
+    }
+
+    private void checkFinished() throws IOException {
+        if (this.pending.position() > 0) {
+            throw new IOException("Input ended mid-record");
+        }
+    }
+
+    private long decodePending(final Sink sink) throws IOException {
+        this.pending.flip();
+        try {
+            return decodeRecords(this.pending, sink);
+        } finally {
+            this.pending.compact();
+        }
+    }
+
+    private long decodeRecords(final ByteBuffer src, final Sink sink)
+        throws IOException {
+        long total = 0;
+        while (true) {
+            final int before = src.remaining();
+            this.plain.clear();
+            this.codec.decodeInto(src, this.plain);
+            if (src.remaining() == before) {
+                return total;
+            }
+            this.plain.flip();
+            if (this.plain.hasRemaining()) {
+                total += this.plain.remaining();
+                sink.write(this.plain);
+            }
+        }
+    }
+
+    /**
+     * Where plain text goes.
+     */
+    private abstract static class Sink {
+        abstract void write(ByteBuffer buf) throws IOException;
+    }
+
+    private static final class ClosureSink extends Sink {
+
+        private final Closure<ByteBuffer> closure;
+
+        private ClosureSink(final Closure<ByteBuffer> closure) {
+            this.closure = closure;
+        }
+
+        @Override
+        void write(final ByteBuffer buf) {
+            this.closure.execute(buf);
+        }
+    }
+}
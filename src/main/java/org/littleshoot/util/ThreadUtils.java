@@ -3,6 +3,8 @@ package org.littleshoot.util;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +23,59 @@ public final class ThreadUtils {
     private static final Logger LOG = LoggerFactory
             .getLogger(ThreadUtils.class);
 
+    /**
+     * Creates a thread factory that makes a virtual thread for each task
+     * when the JVM supports them, and a daemon platform thread otherwise.
+     * Virtual threads are cheap enough to run one per blocking copy loop
+     * even with many thousands of sessions. They're always daemon threads.
+     * 
+     * @param name The prefix name for new threads.
+     * @return The thread factory.
+     */
+    public static ThreadFactory newVirtualThreadFactory(final String name) {
+        final ThreadFactory virtual = virtualThreadFactory(name);
+        if (virtual != null) {
+            return virtual;
+        }
+        return new DaemonThreadFactory(name);
+    }
+
+    /**
+     * Returns whether or not the JVM supports virtual threads.
+     * 
+     * @return <code>true</code> if virtual threads are available, otherwise
+     * <code>false</code>.
+     */
+    public static boolean supportsVirtualThreads() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * Uses reflection to call 
+     * <code>Thread.ofVirtual().name(name + "-", 0).factory()</code>, as we 
+     * still build for JVMs without it.
+     */
+    private static ThreadFactory virtualThreadFactory(final String name) {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builderClass = 
+                Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, 
+                Long.TYPE).invoke(builder, name + "-", Long.valueOf(0));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(
+                builder);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        } catch (final ClassNotFoundException e) {
+            return null;
+        } catch (final Exception e) {
+            // Preview features that aren't enabled, for example.
+            LOG.debug("Could not create virtual thread factory", e);
+            return null;
+        }
+    }
+
     public static void safeWait(final Object object) {
         try {
             object.wait();
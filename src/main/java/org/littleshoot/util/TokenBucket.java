@@ -0,0 +1,165 @@
+package org.littleshoot.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter for bytes. Tokens come in at a fixed rate up to
+ * a burst size, and callers take a token for every byte they send.
+ * <p>
+ * A caller that asks for more tokens than are in the bucket takes them
+ * anyway, leaving the bucket in debt, and then sleeps for as long as the
+ * debt takes to pay off. Each call costs a single short lock, so the
+ * overhead stays low at high packet rates. Callers are served in turn, so
+ * as long as each call is for a buffer's worth of data, competing streams
+ * share the rate fairly rather than one heavy stream taking it all.
+ * <p>
+ * A bucket can have a parent, such as a global bucket shared by per-session
+ * buckets, in which case bytes have to clear both. A rate of zero or less
+ * means no limit. This class is thread safe.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final TokenBucket parent;
+
+    private long rate;
+
+    private long burst;
+
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a new bucket with no parent that allows bursts of one
+     * second's worth of bytes.
+     *
+     * @param bytesPerSecond The rate, or zero or less for no limit.
+     */
+    public TokenBucket(final long bytesPerSecond) {
+        this(bytesPerSecond, bytesPerSecond, null);
+    }
+
+    /**
+     * Creates a new bucket that allows bursts of one second's worth of
+     * bytes.
+     *
+     * @param bytesPerSecond The rate, or zero or less for no limit.
+     * @param parent The bucket bytes also have to clear, or
+     * <code>null</code> for none.
+     */
+    public TokenBucket(final long bytesPerSecond, final TokenBucket parent) {
+        this(bytesPerSecond, bytesPerSecond, parent);
+    }
+
+    /**
+     * Creates a new bucket. It starts out full.
+     *
+     * @param bytesPerSecond The rate, or zero or less for no limit.
+     * @param burst The most bytes that can go through at once after the
+     * bucket has been idle.
+     * @param parent The bucket bytes also have to clear, or
+     * <code>null</code> for none.
+     */
+    public TokenBucket(final long bytesPerSecond, final long burst,
+        final TokenBucket parent) {
+        this.parent = parent;
+        this.rate = bytesPerSecond;
+        this.burst = Math.max(0, burst);
+        this.tokens = this.burst;
+    }
+
+    /**
+     * Takes tokens for the specified number of bytes, waiting as long as
+     * this bucket and its parents need to make up for them.
+     *
+     * @param bytes The number of bytes about to be sent.
+     * @throws InterruptedIOException If we're interrupted while waiting.
+     */
+    public void acquire(final long bytes) throws InterruptedIOException {
+        long wait = 0;
+        for (TokenBucket bucket = this; bucket != null;
+            bucket = bucket.parent) {
+            wait = Math.max(wait, bucket.reserve(bytes));
+        }
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while shaping");
+        }
+    }
+
+    /**
+     * Takes tokens for the specified number of bytes, without waiting.
+     *
+     * @param bytes The number of bytes about to be sent.
+     * @return The number of nanoseconds the caller should wait before
+     * sending them.
+     */
+    synchronized long reserve(final long bytes) {
+        if (this.rate <= 0) {
+            return 0;
+        }
+        refill();
+        this.tokens -= bytes;
+        if (this.tokens >= 0) {
+            return 0;
+        }
+        return (long) (-this.tokens * NANOS_PER_SECOND / this.rate);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final long elapsed = now - this.lastRefill;
+        this.lastRefill = now;
+        this.tokens = Math.min(this.burst,
+            this.tokens + (double) elapsed * this.rate / NANOS_PER_SECOND);
+    }
+
+    /**
+     * Changes the rate, for example when the user changes their settings.
+     * The burst size becomes one second's worth of bytes at the new rate.
+     *
+     * @param bytesPerSecond The new rate, or zero or less for no limit.
+     */
+    public synchronized void setRate(final long bytesPerSecond) {
+        if (this.rate > 0) {
+            refill();
+        } else {
+            this.lastRefill = System.nanoTime();
+        }
+        this.rate = bytesPerSecond;
+        this.burst = Math.max(0, bytesPerSecond);
+        this.tokens = Math.min(this.tokens, this.burst);
+    }
+
+    /**
+     * Accessor for the rate.
+     *
+     * @return The rate in bytes per second, or zero or less for no limit.
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Accessor for the parent bucket.
+     *
+     * @return The parent bucket, or <code>null</code> if there's none.
+     */
+    public TokenBucket getParent() {
+        return parent;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TokenBucket [rate=" + rate + ", burst=" + burst +
+            ", tokens=" + (long) tokens + "]";
+    }
+}
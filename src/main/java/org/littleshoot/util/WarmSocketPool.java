@@ -0,0 +1,310 @@
+package org.littleshoot.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a number of idle connections to a server open ahead of time, so
+ * callers can start using a connection without waiting for the TCP
+ * handshake. A background thread tops the pool back up after connections
+ * are taken and drops connections that have been idle too long, as servers
+ * tend to close those.
+ * <p>
+ * Each connection is checked before it's handed out, so one the server
+ * has closed or written to is never returned. If there's no healthy
+ * connection waiting, {@link #take()} connects as if there were no pool.
+ * <p>
+ * By default the pool holds plain sockets for {@link RelayingSocketHandler}.
+ * Pools for {@link SelectorRelayingSocketHandler} need sockets with
+ * channels, which are handed out in blocking mode. Don't use channel
+ * sockets with a thread reading and another writing: before Java 13 their
+ * streams share a lock, so a blocked read stops writes. This class is
+ * thread safe.
+ */
+public class WarmSocketPool {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(WarmSocketPool.class);
+
+    /**
+     * The default for how long a connection can sit in the pool.
+     */
+    public static final long DEFAULT_MAX_IDLE = 60 * 1000;
+
+    /**
+     * How often we check the pool even if nobody takes from it.
+     */
+    private static final long REFILL_INTERVAL = 5 * 1000;
+
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+
+    private final InetSocketAddress serverAddress;
+
+    private final int size;
+
+    private final long maxIdle;
+
+    private final boolean channels;
+
+    /**
+     * Idle connections, oldest first.
+     */
+    private final BlockingDeque<PooledSocket> idle =
+        new LinkedBlockingDeque<PooledSocket>();
+
+    private final ScheduledExecutorService refiller =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("WarmSocketPool-Refill"));
+
+    private final AtomicBoolean refillPending = new AtomicBoolean();
+
+    private final Runnable refill = new Runnable() {
+        public void run() {
+            refillPending.set(false);
+            refill();
+        }
+    };
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new pool that drops connections after they've been idle for
+     * {@link #DEFAULT_MAX_IDLE}.
+     *
+     * @param serverAddress The address to connect to.
+     * @param size The number of idle connections to keep.
+     */
+    public WarmSocketPool(final InetSocketAddress serverAddress,
+        final int size) {
+        this(serverAddress, size, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Creates a new pool and starts filling it in the background.
+     *
+     * @param serverAddress The address to connect to.
+     * @param size The number of idle connections to keep.
+     * @param maxIdle How long, in milliseconds, a connection can sit in the
+     * pool before we close it. This should be shorter than the server's own
+     * idle timeout.
+     */
+    public WarmSocketPool(final InetSocketAddress serverAddress,
+        final int size, final long maxIdle) {
+        this(serverAddress, size, maxIdle, false);
+    }
+
+    /**
+     * Creates a new pool and starts filling it in the background.
+     *
+     * @param serverAddress The address to connect to.
+     * @param size The number of idle connections to keep.
+     * @param maxIdle How long, in milliseconds, a connection can sit in the
+     * pool before we close it. This should be shorter than the server's own
+     * idle timeout.
+     * @param channels Whether to create sockets with channels, as
+     * {@link SelectorRelayingSocketHandler} needs.
+     */
+    public WarmSocketPool(final InetSocketAddress serverAddress,
+        final int size, final long maxIdle, final boolean channels) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Bad pool size: " + size);
+        }
+        this.serverAddress = serverAddress;
+        this.size = size;
+        this.maxIdle = maxIdle;
+        this.channels = channels;
+        this.refiller.scheduleWithFixedDelay(this.refill, 0, REFILL_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a connected socket, ideally one from the pool.
+     *
+     * @return The connected socket.
+     * @throws IOException If the pool is empty and we can't connect.
+     */
+    public Socket take() throws IOException {
+        if (this.closed) {
+            throw new IOException("Pool is closed");
+        }
+        try {
+            PooledSocket pooled;
+            while ((pooled = this.idle.pollLast()) != null) {
+                if (isHealthy(pooled)) {
+                    LOG.debug("Using warm connection to {}", serverAddress);
+                    return pooled.sock;
+                }
+                LOG.debug("Dropping dead connection to {}", serverAddress);
+                IOUtils.closeQuietly(pooled.sock);
+            }
+        } finally {
+            requestRefill();
+        }
+        LOG.debug("No warm connection to {}", serverAddress);
+        return connect();
+    }
+
+    /**
+     * Returns how many idle connections are waiting in the pool.
+     *
+     * @return The number of idle connections.
+     */
+    public int available() {
+        return this.idle.size();
+    }
+
+    /**
+     * Returns whether the pool's sockets have channels.
+     *
+     * @return <code>true</code> if the sockets have channels, otherwise
+     * <code>false</code>.
+     */
+    public boolean usesChannels() {
+        return channels;
+    }
+
+    /**
+     * Accessor for the address we connect to.
+     *
+     * @return The server address.
+     */
+    public InetSocketAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Stops refilling the pool and closes all the idle connections.
+     * Connections already taken aren't affected.
+     */
+    public void close() {
+        this.closed = true;
+        this.refiller.shutdownNow();
+        PooledSocket pooled;
+        while ((pooled = this.idle.poll()) != null) {
+            IOUtils.closeQuietly(pooled.sock);
+        }
+    }
+
+    private void requestRefill() {
+        if (this.closed || !this.refillPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.refiller.execute(this.refill);
+        } catch (final RejectedExecutionException e) {
+            // We've been closed.
+        }
+    }
+
+    private void refill() {
+        final long now = System.currentTimeMillis();
+        final Iterator<PooledSocket> iter = this.idle.iterator();
+        while (iter.hasNext()) {
+            final PooledSocket pooled = iter.next();
+            // Only the ones still here are ours to close.
+            if (now - pooled.created > this.maxIdle &&
+                this.idle.remove(pooled)) {
+                IOUtils.closeQuietly(pooled.sock);
+            }
+        }
+        while (!this.closed && this.idle.size() < this.size) {
+            try {
+                this.idle.addLast(new PooledSocket(connect()));
+            } catch (final IOException e) {
+                LOG.debug("Could not connect to " + serverAddress, e);
+                return;
+            }
+        }
+        if (this.closed) {
+            close();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        final Socket sock;
+        if (this.channels) {
+            sock = SocketChannel.open().socket();
+        } else {
+            sock = new Socket();
+        }
+        try {
+            sock.connect(this.serverAddress, CONNECT_TIMEOUT);
+        } catch (final IOException e) {
+            IOUtils.closeQuietly(sock);
+            throw e;
+        }
+        return sock;
+    }
+
+    /**
+     * Checks a connection hasn't gone stale or been closed by the server.
+     * An idle connection shouldn't have anything to read, so a read that
+     * finds nothing straight away tells us it's still good. Channels can
+     * do that without blocking, and plain sockets wait a millisecond.
+     */
+    private boolean isHealthy(final PooledSocket pooled) {
+        if (System.currentTimeMillis() - pooled.created > this.maxIdle) {
+            return false;
+        }
+        final Socket sock = pooled.sock;
+        if (!sock.isConnected() || sock.isClosed()) {
+            return false;
+        }
+        final SocketChannel channel = sock.getChannel();
+        try {
+            if (channel != null) {
+                channel.configureBlocking(false);
+                final int read = channel.read(ByteBuffer.allocate(1));
+                channel.configureBlocking(true);
+                return read == 0;
+            }
+            final int timeout = sock.getSoTimeout();
+            sock.setSoTimeout(1);
+            try {
+                sock.getInputStream().read();
+                // Either the server closed it or sent something unasked.
+                return false;
+            } catch (final SocketTimeoutException e) {
+                return true;
+            } finally {
+                sock.setSoTimeout(timeout);
+            }
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WarmSocketPool [serverAddress=" + serverAddress + ", size=" +
+            size + ", channels=" + channels + ", available=" + available() +
+            "]";
+    }
+
+    private static final class PooledSocket {
+
+        private final Socket sock;
+
+        private final long created = System.currentTimeMillis();
+
+        private PooledSocket(final Socket sock) {
+            this.sock = sock;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveBufferSizerTest {
+
+    @Test
+    public void testGrowAndShrink() throws Exception {
+        final AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(1024 * 1024);
+        final AdaptiveBuffer buffer = sizer.newBuffer(4096);
+        assertEquals(4096, buffer.size());
+        assertEquals(4096, sizer.getReserved());
+
+        // Full reads like a bulk download grow the buffer up to the max.
+        for (int i = 0; i < 100; i++) {
+            buffer.onRead(buffer.size());
+        }
+        assertEquals(AdaptiveBufferSizer.MAX_BUFFER_SIZE, buffer.size());
+        assertEquals(AdaptiveBufferSizer.MAX_BUFFER_SIZE,
+            sizer.getReserved());
+
+        // Small reads like an interactive session shrink it to the min.
+        for (int i = 0; i < 1000; i++) {
+            buffer.onRead(10);
+        }
+        assertEquals(AdaptiveBufferSizer.MIN_BUFFER_SIZE, buffer.size());
+        assertEquals(AdaptiveBufferSizer.MIN_BUFFER_SIZE, sizer.getReserved());
+        buffer.release();
+        buffer.release();
+        assertEquals(0, sizer.getReserved());
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        final int budget = 64 * 1024;
+        final AdaptiveBufferSizer sizer = new AdaptiveBufferSizer(budget);
+        final AdaptiveBuffer first = sizer.newBuffer(1024);
+        final AdaptiveBuffer second = sizer.newBuffer(1024);
+        for (int i = 0; i < 100; i++) {
+            first.onRead(first.size());
+            second.onRead(second.size());
+        }
+        // Both stop at 32k, which uses the whole budget.
+        assertEquals(32 * 1024, first.size());
+        assertEquals(32 * 1024, second.size());
+        assertEquals(budget, sizer.getReserved());
+
+        // No room for a bigger start, but we still get the minimum.
+        final AdaptiveBuffer third = sizer.newBuffer(16 * 1024);
+        assertEquals(AdaptiveBufferSizer.MIN_BUFFER_SIZE, third.size());
+        assertEquals(budget + AdaptiveBufferSizer.MIN_BUFFER_SIZE,
+            sizer.getReserved());
+
+        first.release();
+        second.release();
+        third.release();
+        assertEquals(0, sizer.getReserved());
+    }
+}
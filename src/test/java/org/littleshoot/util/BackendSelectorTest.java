@@ -0,0 +1,152 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BackendSelectorTest {
+
+    @Test
+    public void testLeastConnections() throws Exception {
+        final ServerSocket server1 = new ServerSocket(0);
+        final ServerSocket server2 = new ServerSocket(0);
+        final InetSocketAddress address1 = address(server1.getLocalPort());
+        final InetSocketAddress address2 = address(server2.getLocalPort());
+        final BackendSelector selector = new BackendSelector(
+            provider(address1, address2),
+            BackendSelector.Strategy.LEAST_CONNECTIONS);
+
+        final List<Socket> socks = new ArrayList<Socket>();
+        for (int i = 0; i < 4; i++) {
+            socks.add(selector.connect(5000));
+        }
+        assertEquals(2, selector.getConnections(address1));
+        assertEquals(2, selector.getConnections(address2));
+
+        // Releasing twice only counts once.
+        final Socket sock = socks.get(0);
+        final InetSocketAddress released =
+            (InetSocketAddress) sock.getRemoteSocketAddress();
+        selector.release(sock);
+        selector.release(sock);
+        sock.close();
+        assertEquals(1, selector.getConnections(released));
+
+        // The next connection goes to the backend we released.
+        socks.set(0, selector.connect(5000));
+        assertEquals(released, socks.get(0).getRemoteSocketAddress());
+
+        for (final Socket s : socks) {
+            selector.release(s);
+            s.close();
+        }
+        assertEquals(0, selector.getConnections(address1));
+        assertEquals(0, selector.getConnections(address2));
+        server1.close();
+        server2.close();
+    }
+
+    @Test
+    public void testBreakerSkipsDeadBackend() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final InetSocketAddress live = address(server.getLocalPort());
+        final ServerSocket closed = new ServerSocket(0);
+        final InetSocketAddress dead = address(closed.getLocalPort());
+        closed.close();
+
+        final BackendSelector selector = new BackendSelector(
+            provider(dead, live), BackendSelector.Strategy.LOWEST_LATENCY);
+
+        // Every connect reaches the live backend, and the dead one trips
+        // once it's failed enough times.
+        for (int i = 0; i < 10; i++) {
+            final Socket sock = selector.connect(5000);
+            assertEquals(live, sock.getRemoteSocketAddress());
+            selector.release(sock);
+            sock.close();
+        }
+        assertTrue(selector.isTripped(dead));
+        assertFalse(selector.isTripped(live));
+        assertEquals(0, selector.getConnections(dead));
+        assertEquals(0, selector.getConnections(live));
+        server.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoBackends() throws Exception {
+        final ServerSocket closed = new ServerSocket(0);
+        final InetSocketAddress dead = address(closed.getLocalPort());
+        closed.close();
+        final BackendSelector selector = new BackendSelector(provider(dead),
+            BackendSelector.Strategy.LEAST_CONNECTIONS);
+        selector.connect(5000);
+    }
+
+    @Test
+    public void testRelayReleasesOnFailedStart() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final InetSocketAddress backend = address(server.getLocalPort());
+        final BackendSelector selector = new BackendSelector(
+            provider(backend), BackendSelector.Strategy.LEAST_CONNECTIONS);
+        final RelayingSocketHandler handler =
+            new RelayingSocketHandler(selector);
+        handler.setSessionRegistry(new RelaySessionRegistry() {
+            @Override
+            public RelaySession register(final String id,
+                final Socket external, final Socket relay) {
+                throw new IllegalStateException("Registry is broken");
+            }
+        });
+
+        final ServerSocket front = new ServerSocket(0);
+        final Socket client = new Socket("127.0.0.1", front.getLocalPort());
+        final Socket external = front.accept();
+        try {
+            handler.onSocket("broken", external);
+            fail("Expected the registry to fail");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(0, selector.getConnections(backend));
+
+        // The relay connection was closed rather than leaked.
+        final Socket relayed = server.accept();
+        relayed.setSoTimeout(5000);
+        assertEquals(-1, relayed.getInputStream().read());
+
+        relayed.close();
+        client.close();
+        external.close();
+        front.close();
+        server.close();
+    }
+
+    private static InetSocketAddress address(final int port) {
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    private static CandidateProvider<InetSocketAddress> provider(
+        final InetSocketAddress... addresses) {
+        return new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Arrays.asList(addresses);
+            }
+
+            public InetSocketAddress getCandidate() {
+                return addresses[0];
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for the non-blocking encrypting channel.
+ */
+public class CipherChannelTest {
+
+    @Test
+    public void testNonBlockingRead() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(300000);
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        final SocketChannel client = SocketChannel.open(
+            server.socket().getLocalSocketAddress());
+        final Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final CipherChannel cc =
+                        new CipherChannel(client, key, key);
+                    // Uneven writes to get records of different sizes.
+                    int index = 0;
+                    while (index < data.length) {
+                        final int len =
+                            Math.min(data.length - index, 7000 + index % 50000);
+                        cc.write(ByteBuffer.wrap(data, index, len));
+                        index += len;
+                    }
+                    cc.close();
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.start();
+
+        final SocketChannel accepted = server.accept();
+        accepted.configureBlocking(false);
+        final CipherChannel cc = new CipherChannel(accepted, key, key);
+        final Selector selector = Selector.open();
+        cc.register(selector, SelectionKey.OP_READ, cc);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        // Smaller than a record, so some plain text gets buffered.
+        final ByteBuffer buf = ByteBuffer.allocate(10000);
+        boolean done = false;
+        while (!done) {
+            if (!cc.hasBufferedInput()) {
+                selector.select(5000);
+                selector.selectedKeys().clear();
+            }
+            int read;
+            while ((read = cc.read(buf)) > 0) {
+                received.write(buf.array(), 0, read);
+                buf.clear();
+            }
+            done = read == -1;
+        }
+        selector.close();
+        cc.close();
+        server.close();
+        assertTrue(Arrays.equals(data, received.toByteArray()));
+    }
+
+    @Test
+    public void testStreamInterop() throws Exception {
+        final byte[] writeKey = CommonUtils.generateKey();
+        final byte[] readKey = CommonUtils.generateKey();
+        final byte[] data = buildData(100000);
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final SocketChannel client = SocketChannel.open(
+            server.socket().getLocalSocketAddress());
+        final CipherSocket serverSock = new CipherSocket(
+            server.accept().socket(), readKey, writeKey);
+        final CipherSocket clientSock =
+            new CipherSocket(client.socket(), writeKey, readKey);
+        assertEquals(null, clientSock.getChannel());
+
+        final CipherChannel cc = clientSock.getCipherChannel();
+        cc.write(ByteBuffer.wrap(data));
+        assertTrue(!cc.hasPendingOutput());
+
+        final InputStream is = serverSock.getInputStream();
+        final byte[] read = new byte[data.length];
+        int index = 0;
+        while (index < read.length) {
+            index += is.read(read, index, read.length - index);
+        }
+        assertTrue(Arrays.equals(data, read));
+
+        final OutputStream os = serverSock.getOutputStream();
+        os.write(data, 0, 1000);
+        final ByteBuffer reply = ByteBuffer.allocate(1000);
+        while (reply.hasRemaining()) {
+            cc.read(reply);
+        }
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 1000), reply.array()));
+        serverSock.close();
+        clientSock.close();
+        server.close();
+    }
+
+    private static byte[] buildData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+}
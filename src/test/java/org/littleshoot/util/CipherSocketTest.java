@@ -1,6 +1,7 @@
 package org.littleshoot.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
@@ -61,6 +62,30 @@ public class CipherSocketTest {
         }
     }
 
+    @Test public void testStableStreams() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        final Socket plainClient = 
+            new Socket("127.0.0.1", server.getLocalPort());
+        final Socket serverSock = 
+            new CipherSocket(server.accept(), key, key);
+        final Socket client = new CipherSocket(plainClient, key, key);
+        assertSame(client.getOutputStream(), client.getOutputStream());
+        assertSame(serverSock.getInputStream(), serverSock.getInputStream());
+        
+        // Data left over in a record shouldn't be lost between calls.
+        client.getOutputStream().write(MSG.getBytes());
+        final byte[] first = new byte[10];
+        assertEquals(10, serverSock.getInputStream().read(first));
+        final byte[] rest = new byte[MSG.length() - 10];
+        assertEquals(rest.length, serverSock.getInputStream().read(rest));
+        assertEquals(MSG, new String(first) + new String(rest));
+        client.close();
+        serverSock.close();
+        server.close();
+    }
+
     private static String createMessage() {
         final String hello = "HelloWorld-";
         final StringBuilder sb = new StringBuilder();
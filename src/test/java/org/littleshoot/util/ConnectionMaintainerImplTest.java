@@ -0,0 +1,133 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConnectionMaintainerImplTest {
+
+    @Test
+    public void testParallelAttempts() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ConnectionEstablisher<String, String> establisher =
+            new ConnectionEstablisher<String, String>() {
+                public void establish(final String serverId,
+                    final ConnectionMaintainerListener<String> listener) {
+                    attempts.incrementAndGet();
+                    final int now = inFlight.incrementAndGet();
+                    synchronized (maxInFlight) {
+                        maxInFlight.set(Math.max(maxInFlight.get(), now));
+                    }
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    inFlight.decrementAndGet();
+                    if (serverId.startsWith("bad")) {
+                        listener.connectionFailed();
+                    } else {
+                        listener.connected("connection-" + serverId);
+                    }
+                }
+            };
+        final CandidateProvider<String> candidates =
+            new CandidateProvider<String>() {
+                public Collection<String> getCandidates() {
+                    final List<String> ids = new ArrayList<String>();
+                    ids.add("bad-1");
+                    for (int i = 0; i < 10; i++) {
+                        ids.add("server-" + i);
+                    }
+                    return ids;
+                }
+
+                public String getCandidate() {
+                    return getCandidates().iterator().next();
+                }
+            };
+        final ConnectionMaintainerImpl<String, String> maintainer =
+            new ConnectionMaintainerImpl<String, String>(establisher,
+                candidates, 5, 3);
+        maintainer.start();
+
+        // The first attempts all wait on the network together.
+        final long end = System.currentTimeMillis() + 5000;
+        while (inFlight.get() < 3 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(3, inFlight.get());
+
+        release.countDown();
+        while (maintainer.getConnectedServers().size() < 5 &&
+            System.currentTimeMillis() < end + 5000) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, maintainer.getConnectedServers().size());
+        assertEquals(3, maxInFlight.get());
+        // The failed attempt is replaced, but we stop at the minimum.
+        assertEquals(6, attempts.get());
+    }
+
+    @Test
+    public void testReportThenThrow() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final ConnectionEstablisher<String, String> establisher =
+            new ConnectionEstablisher<String, String>() {
+                public void establish(final String serverId,
+                    final ConnectionMaintainerListener<String> listener) {
+                    attempts.incrementAndGet();
+                    if (serverId.startsWith("bad")) {
+                        listener.connectionFailed();
+                    } else {
+                        listener.connected("connection-" + serverId);
+                    }
+                    // Reporting twice only counts once.
+                    listener.connectionFailed();
+                    throw new IllegalStateException("Broke after reporting");
+                }
+            };
+        final CandidateProvider<String> candidates =
+            new CandidateProvider<String>() {
+                public Collection<String> getCandidates() {
+                    final List<String> ids = new ArrayList<String>();
+                    for (int i = 0; i < 3; i++) {
+                        ids.add("bad-" + i);
+                    }
+                    for (int i = 0; i < 10; i++) {
+                        ids.add("server-" + i);
+                    }
+                    return ids;
+                }
+
+                public String getCandidate() {
+                    return getCandidates().iterator().next();
+                }
+            };
+        final ConnectionMaintainerImpl<String, String> maintainer =
+            new ConnectionMaintainerImpl<String, String>(establisher,
+                candidates, 4, 2);
+        maintainer.start();
+
+        final long end = System.currentTimeMillis() + 5000;
+        while (maintainer.getConnectedServers().size() < 4 &&
+            System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(4, maintainer.getConnectedServers().size());
+        assertEquals(0, maintainer.getOutstanding());
+        assertEquals(7, attempts.get());
+    }
+}
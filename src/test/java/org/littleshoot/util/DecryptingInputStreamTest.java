@@ -3,6 +3,8 @@ package org.littleshoot.util;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -118,6 +120,39 @@ public class DecryptingInputStreamTest {
         assertEquals("Not equal:\n"+original+"\n"+decoded+"\n", original, decoded);
     }
 
+    @Test public void testManyRecordsTrickling() throws Exception {
+        final byte[] readKey = CommonUtils.generateKey();
+        final StringBuilder sb = new StringBuilder();
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            final String msg = "record-" + i + longMessage("-" + i);
+            sb.append(msg);
+            encoded.write(buildBuf(msg, readKey));
+        }
+        final String original = sb.toString();
+        
+        // Only hand out a few bytes at a time to split records across reads.
+        final InputStream trickle = 
+            new ByteArrayInputStream(encoded.toByteArray()) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, 
+                final int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        final DecryptingInputStream is = 
+            new DecryptingInputStream(readKey, trickle);
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        final byte[] readBuf = new byte[1024];
+        int read;
+        int i = 0;
+        // Alternate small and large reads to exercise both drain paths.
+        while ((read = is.read(readBuf, 0, i++ % 2 == 0 ? 5 : 1024)) != -1) {
+            decoded.write(readBuf, 0, read);
+        }
+        assertEquals(original, new String(decoded.toByteArray()));
+    }
+
     private String longMessage() {
         return longMessage("helloooo world-");
     }
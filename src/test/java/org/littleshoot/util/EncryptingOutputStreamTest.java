@@ -1,5 +1,6 @@
 package org.littleshoot.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
@@ -28,6 +29,43 @@ public class EncryptingOutputStreamTest {
     }
     
     
+    @Test 
+    public void testBufferedSingleByteWrites() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(40);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final EncryptingOutputStream os = new EncryptingOutputStream(key, 
+            baos, EncryptingOutputStream.MAX_LINGER_THRESHOLD);
+        for (final byte b : data) {
+            os.write(b);
+        }
+        assertEquals(0, baos.size());
+        os.flush();
+        
+        // All the writes should be gathered into a single record.
+        final byte[] encrypted = baos.toByteArray();
+        final byte[] single = CommonUtils.decodeSingleMessage(key, encrypted);
+        assertTrue(Arrays.equals(data, single));
+    }
+    
+    @Test 
+    public void testBufferedHugeData() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(320000);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final EncryptingOutputStream os = 
+            new EncryptingOutputStream(key, baos, 1000);
+        os.write(data, 0, 7);
+        os.write(data, 7, data.length - 7);
+        os.close();
+        
+        final byte[] allData = 
+            CommonUtils.decodeAllMessages(key, baos.toByteArray());
+        assertTrue(Arrays.equals(data, allData));
+    }
+    
     public void runTest(final int size) throws Exception {
         final byte[] key = CommonUtils.generateKey();
         final byte[] data = buildData(size);
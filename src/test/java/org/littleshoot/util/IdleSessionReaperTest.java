@@ -0,0 +1,95 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class IdleSessionReaperTest {
+
+    @Test
+    public void testReapIdleOnly() throws Exception {
+        final ServerSocket echoServer = startEchoServer();
+        final RelayingSocketHandler handler = new RelayingSocketHandler(
+            new InetSocketAddress("127.0.0.1", echoServer.getLocalPort()));
+        final RelaySessionRegistry registry = new RelaySessionRegistry();
+        handler.setSessionRegistry(registry);
+        // A wheel that turns in 200ms, so the timeout takes more than one
+        // turn.
+        final IdleSessionReaper reaper = new IdleSessionReaper(50, 4);
+        reaper.setTimeouts(0, 0, 500);
+        handler.setIdleReaper(reaper);
+
+        final ServerSocket server = new ServerSocket(0);
+        final Socket idle = new Socket("127.0.0.1", server.getLocalPort());
+        handler.onSocket("idle", server.accept());
+        final Socket busy = new Socket("127.0.0.1", server.getLocalPort());
+        handler.onSocket("busy", server.accept());
+        assertEquals(2, reaper.getSessionCount());
+
+        final OutputStream os = busy.getOutputStream();
+        final InputStream is = busy.getInputStream();
+        final long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 1500) {
+            os.write(1);
+            assertEquals(1, is.read());
+            Thread.sleep(100);
+        }
+        assertEquals(-1, idle.getInputStream().read());
+        assertTrue(registry.get("idle") == null);
+        assertTrue(registry.get("busy") != null);
+        assertEquals(1, reaper.getSessionCount());
+
+        busy.close();
+        idle.close();
+        reaper.stop();
+        server.close();
+        echoServer.close();
+    }
+
+    private ServerSocket startEchoServer() throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        final Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket sock = server.accept();
+                        final Thread copier = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    final InputStream in =
+                                        sock.getInputStream();
+                                    final OutputStream out =
+                                        sock.getOutputStream();
+                                    int b;
+                                    while ((b = in.read()) != -1) {
+                                        out.write(b);
+                                    }
+                                } catch (final IOException e) {
+                                    // The relay closed the connection.
+                                } finally {
+                                    IOUtils.closeQuietly(sock);
+                                }
+                            }
+                        });
+                        copier.setDaemon(true);
+                        copier.start();
+                    }
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+}
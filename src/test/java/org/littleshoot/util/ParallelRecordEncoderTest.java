@@ -0,0 +1,99 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests for parallel record encoding and pipelined decoding.
+ */
+public class ParallelRecordEncoderTest {
+
+    @Test
+    public void testMatchesSerialEncoding() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final ParallelRecordEncoder encoder = new ParallelRecordEncoder(key);
+        for (final int size : new int[] {0, 1, CommonUtils.SIZE_LIMIT,
+            3 * CommonUtils.SIZE_LIMIT + 7, 2000000}) {
+            final byte[] data = buildData(size);
+            final byte[] encoded = encoder.encode(data, 0, data.length);
+            assertEquals(CommonUtils.encode(key, data, 0, data.length).length,
+                encoded.length);
+            assertTrue("Bad round trip for "+size, Arrays.equals(data,
+                CommonUtils.decodeAllMessages(key, encoded)));
+        }
+    }
+
+    @Test
+    public void testGcmEncodeTo() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final ParallelRecordEncoder encoder = new ParallelRecordEncoder(key,
+            RecordCodec.VERSION_GCM, new ForkJoinPool(3));
+        final byte[] data = buildData(5000000);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        encoder.encodeTo(data, 10, data.length - 20, baos);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, data.length - 10),
+            CommonUtils.decodeAllMessages(key, baos.toByteArray())));
+    }
+
+    @Test
+    public void testPipelinedStream() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(3000000);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final EncryptingOutputStream eos = new EncryptingOutputStream(
+            new ParallelRecordEncoder(key), baos);
+        eos.write(data, 0, 1000);
+        eos.write(data, 1000, data.length - 1000);
+        eos.close();
+
+        final InputStream is = new PipelinedDecryptingInputStream(key,
+            new ByteArrayInputStream(baos.toByteArray()));
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        final byte[] buf = new byte[5000];
+        int read;
+        while ((read = is.read(buf)) != -1) {
+            decoded.write(buf, 0, read);
+        }
+        is.close();
+        assertTrue(Arrays.equals(data, decoded.toByteArray()));
+    }
+
+    @Test
+    public void testPipelinedStreamTruncated() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] encoded = CommonUtils.encode(key, buildData(100000), 0,
+            100000);
+        // Cut off mid-body and mid-header.
+        for (final int length : new int[] {encoded.length - 5, 1}) {
+            final InputStream is = new PipelinedDecryptingInputStream(key,
+                new ByteArrayInputStream(encoded, 0, length));
+            final byte[] buf = new byte[5000];
+            try {
+                while (is.read(buf) != -1) {
+                }
+                fail("Accepted a stream cut to " + length + " bytes");
+            } catch (final IOException e) {
+                assertEquals("Stream ended mid-record", e.getMessage());
+            }
+            is.close();
+        }
+    }
+
+    private static byte[] buildData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+}
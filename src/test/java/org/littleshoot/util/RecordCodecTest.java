@@ -0,0 +1,399 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for the key-scoped record codec.
+ */
+public class RecordCodecTest {
+
+    @Test
+    public void testReuseAcrossRecords() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final RecordCodec encoder = new RecordCodec(key);
+        final RecordCodec decoder = new RecordCodec(key);
+        for (int i = 0; i < 100; i++) {
+            final byte[] data = buildData(i);
+            final byte[] encoded = encoder.encodeSingleMessage(data, 0,
+                data.length);
+            final byte[] decoded = decoder.decodeSingleMessage(encoded,
+                new AtomicInteger(0));
+            assertTrue("Not equal on record "+i, Arrays.equals(data, decoded));
+        }
+    }
+
+    @Test
+    public void testCompatibleWithCommonUtils() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] otherKey = CommonUtils.generateKey();
+        final byte[] data = buildData(100000);
+
+        final byte[] encoded = new RecordCodec(key).encode(data, 0,
+            data.length);
+
+        // Interleave another key to make sure thread codecs don't get mixed.
+        CommonUtils.encode(otherKey, data, 0, 10);
+        assertTrue(Arrays.equals(data,
+            CommonUtils.decodeAllMessages(key, encoded)));
+    }
+
+    @Test
+    public void testEncodeWithOffset() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(100000);
+        final int off = 1000;
+        final int len = data.length - 2000;
+        final byte[] encoded = CommonUtils.encode(key, data, off, len);
+        final byte[] decoded = CommonUtils.decodeAllMessages(key, encoded);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, off, off + len),
+            decoded));
+    }
+
+    @Test
+    public void testTamperedRecord() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final RecordCodec codec = new RecordCodec(key);
+        final byte[] data = buildData(40);
+        final byte[] encoded = codec.encodeSingleMessage(data, 0, data.length);
+        encoded[RecordCodec.HEADER_SIZE + 4] ^= 0x01;
+        try {
+            codec.decodeSingleMessage(encoded, new AtomicInteger(0));
+            fail("Should have rejected tampered record");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+
+        // The codec should still be usable after a failure.
+        final byte[] good = codec.encodeSingleMessage(data, 0, data.length);
+        assertTrue(Arrays.equals(data,
+            codec.decodeSingleMessage(good, new AtomicInteger(0))));
+    }
+
+    @Test
+    public void testGarbageRejectedByMac() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final RecordCodec codec = new RecordCodec(key);
+        // Ciphertext that isn't even a whole number of blocks. The MAC
+        // check should reject it before the cipher ever sees it.
+        final byte[] garbage = new byte[RecordCodec.HEADER_SIZE + 21 +
+            RecordCodec.MAC_SIZE];
+        garbage[0] = RecordCodec.VERSION_HMAC;
+        garbage[2] = 21;
+        final ByteBuffer dst = ByteBuffer.allocate(100);
+        try {
+            codec.decodeInto(ByteBuffer.wrap(garbage), dst);
+            fail("Should have rejected garbage");
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Macs don't match!!", e.getMessage());
+        }
+        assertEquals(0, dst.position());
+    }
+
+    @Test
+    public void testDirectBufferRoundTrip() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final RecordCodec codec = new RecordCodec(key);
+        final byte[] data = buildData(100000);
+        final ByteBuffer src = ByteBuffer.wrap(data);
+        final ByteBuffer encoded =
+            ByteBuffer.allocateDirect(codec.encodedLength(data.length));
+        final int written = codec.encodeInto(src, encoded);
+        assertEquals(encoded.capacity(), written);
+        assertFalse(src.hasRemaining());
+        encoded.flip();
+
+        // The buffer encoding should match the array encoding.
+        final byte[] encodedBytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(encodedBytes);
+        assertTrue(Arrays.equals(data,
+            CommonUtils.decodeAllMessages(key, encodedBytes)));
+
+        final ByteBuffer plain = ByteBuffer.allocateDirect(data.length + 64);
+        assertEquals(data.length, codec.decodeInto(encoded, plain));
+        assertFalse(encoded.hasRemaining());
+        plain.flip();
+        final byte[] decoded = new byte[plain.remaining()];
+        plain.get(decoded);
+        assertTrue(Arrays.equals(data, decoded));
+    }
+
+    @Test
+    public void testDecodeIntoLeavesPartialRecord() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(40);
+        final byte[] one = CommonUtils.encodeSingleMessage(key, data, 0, 40);
+        final byte[] two = CommonUtils.combine(one, one);
+        final ByteBuffer src = ByteBuffer.wrap(two, 0, two.length - 5);
+        final ByteBuffer dst = ByteBuffer.allocate(200);
+        assertEquals(40, CommonUtils.decodeInto(key, src, dst));
+        assertEquals(one.length - 5, src.remaining());
+    }
+
+    @Test
+    public void testEncodeIntoOverflow() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final ByteBuffer src = ByteBuffer.wrap(buildData(40));
+        final ByteBuffer dst = ByteBuffer.allocate(40);
+        try {
+            CommonUtils.encodeInto(key, src, dst);
+            fail("Should have overflowed");
+        } catch (final BufferOverflowException e) {
+            // Expected.
+        }
+        assertEquals(0, src.position());
+        assertEquals(0, dst.position());
+    }
+
+    @Test
+    public void testGcmRecords() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final RecordCodec gcm = new RecordCodec(key, RecordCodec.VERSION_GCM);
+        final byte[] data = buildData(100000);
+        final byte[] encoded = gcm.encode(data, 0, data.length);
+        assertEquals(gcm.encodedLength(data.length), encoded.length);
+        assertEquals(RecordCodec.VERSION_GCM, encoded[0]);
+
+        // A version 1 codec should read version 2 records.
+        assertTrue(Arrays.equals(data,
+            CommonUtils.decodeAllMessages(key, encoded)));
+
+        encoded[20] ^= 0x01;
+        try {
+            CommonUtils.decodeAllMessages(key, encoded);
+            fail("Should have rejected tampered record");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testMixedVersionStream() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(50000);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final EncryptingOutputStream v1 =
+            new EncryptingOutputStream(new RecordCodec(key), baos);
+        final EncryptingOutputStream v2 = new EncryptingOutputStream(
+            new RecordCodec(key, RecordCodec.VERSION_GCM), baos);
+        v1.write(data, 0, 20000);
+        v2.write(data, 20000, 20000);
+        v1.write(data, 40000, 10000);
+
+        final DecryptingInputStream is = new DecryptingInputStream(key,
+            new ByteArrayInputStream(baos.toByteArray()));
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        final byte[] buf = new byte[3000];
+        int read;
+        while ((read = is.read(buf)) != -1) {
+            decoded.write(buf, 0, read);
+        }
+        assertTrue(Arrays.equals(data, decoded.toByteArray()));
+    }
+
+    @Test
+    public void testJumboRecords() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(1000000);
+        for (final byte version : new byte[] {RecordCodec.VERSION_HMAC,
+            RecordCodec.VERSION_GCM}) {
+            final RecordCodec codec =
+                new RecordCodec(key, version, 256 * 1024);
+            final byte[] encoded = codec.encode(data, 0, data.length);
+            assertEquals(version | RecordCodec.JUMBO_FLAG, encoded[0]);
+            // Four records instead of thirty one.
+            assertTrue(encoded.length < data.length + 4 * 60);
+
+            final ByteBuffer decoded = ByteBuffer.allocate(data.length + 100);
+            assertEquals(data.length,
+                codec.decodeInto(ByteBuffer.wrap(encoded), decoded));
+            assertTrue(Arrays.equals(data,
+                Arrays.copyOf(decoded.array(), data.length)));
+
+            // Streams, with the jumbo records trickling in.
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final EncryptingOutputStream eos = new EncryptingOutputStream(
+                new RecordCodec(key, version, 256 * 1024), baos);
+            eos.write(data);
+            eos.close();
+            final DecryptingInputStream dis = new DecryptingInputStream(
+                new RecordCodec(key, version, 256 * 1024),
+                new TricklingInputStream(baos.toByteArray(), 7001));
+            final byte[] read = new byte[data.length];
+            int index = 0;
+            while (index < read.length) {
+                index += dis.read(read, index,
+                    Math.min(5000, read.length - index));
+            }
+            assertEquals(-1, dis.read());
+            assertTrue(Arrays.equals(data, read));
+        }
+    }
+
+    @Test
+    public void testJumboRecordTooBig() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(300000);
+        final byte[] encoded = new RecordCodec(key, RecordCodec.VERSION_HMAC,
+            1024 * 1024).encode(data, 0, data.length);
+        final RecordCodec small =
+            new RecordCodec(key, RecordCodec.VERSION_HMAC, 64 * 1024);
+        try {
+            small.decodeInto(ByteBuffer.wrap(encoded),
+                ByteBuffer.allocate(1024 * 1024));
+            fail("Should have rejected big record");
+        } catch (final IllegalArgumentException e) {
+            assertEquals("Record too big: "+
+                RecordCodec.messageLength(encoded, 0), e.getMessage());
+        }
+        final InputRecord record = new InputRecord(small);
+        try {
+            record.addData(ByteBuffer.wrap(encoded, 0, 10));
+            fail("Should have rejected big record");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testCompressedRecords() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < 100000) {
+            sb.append("{\"name\": \"value\", \"count\": ");
+            sb.append(sb.length());
+            sb.append("}\n");
+        }
+        final byte[] text = sb.toString().getBytes("UTF-8");
+        final byte[] random = new byte[50000];
+        new java.util.Random(42).nextBytes(random);
+        for (final byte version : new byte[] {RecordCodec.VERSION_HMAC,
+            RecordCodec.VERSION_GCM}) {
+            final RecordCodec codec = new RecordCodec(key, version);
+            codec.setCompressing(true);
+            final byte[] encoded = codec.encode(text, 0, text.length);
+            assertEquals(version | RecordCodec.COMPRESSED_FLAG, encoded[0]);
+            assertTrue(encoded.length < text.length / 2);
+            assertTrue(Arrays.equals(text,
+                CommonUtils.decodeAllMessages(key, encoded)));
+
+            // Random data doesn't compress, so it goes out raw.
+            final byte[] raw = codec.encode(random, 0, random.length);
+            assertEquals(version, raw[0]);
+            assertTrue(Arrays.equals(random,
+                CommonUtils.decodeAllMessages(key, raw)));
+
+            // Direct buffers and the stream path.
+            final ByteBuffer direct = ByteBuffer.allocateDirect(text.length);
+            direct.put(text).flip();
+            final ByteBuffer dst = ByteBuffer.allocateDirect(text.length * 2);
+            codec.encodeInto(direct, dst);
+            dst.flip();
+            // Compressed records need room for a full record to decode.
+            final ByteBuffer plain = ByteBuffer.allocateDirect(text.length +
+                CommonUtils.SIZE_LIMIT);
+            assertEquals(text.length, codec.decodeInto(dst, plain));
+            final DecryptingInputStream dis = new DecryptingInputStream(key,
+                new TricklingInputStream(encoded, 999));
+            final byte[] read = new byte[text.length];
+            int index = 0;
+            while (index < read.length) {
+                index += dis.read(read, index, read.length - index);
+            }
+            assertTrue(Arrays.equals(text, read));
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final RecordStats stats = new RecordStats(null);
+        final RecordCodec codec = new RecordCodec(key);
+        codec.setStats(stats);
+        final byte[] data = buildData(100000);
+        final byte[] encoded = codec.encode(data, 0, data.length);
+        assertEquals(4, stats.getRecordsEncoded());
+        assertEquals(data.length, stats.getBytesEncoded());
+
+        codec.decodeInto(ByteBuffer.wrap(encoded),
+            ByteBuffer.allocate(encoded.length));
+        assertEquals(4, stats.getRecordsDecoded());
+        assertEquals(data.length, stats.getBytesDecoded());
+        assertTrue(stats.getDecodeNanos99thPercentile() > 0);
+        long histogramTotal = 0;
+        for (final long count : stats.getDecodeLatencyHistogram()) {
+            histogramTotal += count;
+        }
+        assertEquals(4, histogramTotal);
+
+        encoded[RecordCodec.HEADER_SIZE] ^= 0x01;
+        try {
+            codec.decodeSingleMessage(encoded, new AtomicInteger(0));
+            fail("Should have rejected tampered record");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+        encoded[0] = 9;
+        try {
+            codec.decodeSingleMessage(encoded, new AtomicInteger(0));
+            fail("Should have rejected bad version");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals(1, stats.getMacFailures());
+        assertEquals(1, stats.getDecodeErrors());
+        assertEquals(4, stats.getRecordsDecoded());
+    }
+
+    /**
+     * Stream that hands out data a few bytes at a time.
+     */
+    private static final class TricklingInputStream extends InputStream {
+
+        private final byte[] data;
+        private final int chunk;
+        private int index = 0;
+
+        private TricklingInputStream(final byte[] data, final int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return index < data.length ? data[index++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (index == data.length) {
+                return -1;
+            }
+            final int toCopy =
+                Math.min(chunk, Math.min(len, data.length - index));
+            System.arraycopy(data, index, b, off, toCopy);
+            index += toCopy;
+            return toCopy;
+        }
+    }
+
+    private byte[] buildData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+}
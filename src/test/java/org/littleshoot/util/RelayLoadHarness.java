@@ -0,0 +1,342 @@
+package org.littleshoot.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Load generator for {@link RelayingSocketHandler}. Everything runs in this
+ * JVM over loopback: an echo server as the backend, a relay server that
+ * hands each accepted socket to the handler, and the clients. All the
+ * clients connect first and then echo messages through the relay at the
+ * same time, so every session is live at once.
+ * <p>
+ * Arguments are <code>name=value</code> pairs, all optional:
+ * <ul>
+ * <li><code>sessions</code> The number of concurrent sessions. Default
+ * 1000.</li>
+ * <li><code>rounds</code> The messages each session echoes. Default 100.</li>
+ * <li><code>size</code> The bytes in each message. Default 4096.</li>
+ * <li><code>cipher</code> Whether to wrap the client and relay sockets in
+ * {@link CipherSocket}s. Default false.</li>
+ * <li><code>virtual</code> Whether to run all the threads on virtual
+ * threads where the JVM has them. Default false.</li>
+ * </ul>
+ * For example:
+ * <pre>
+ * java -Xss256k org.littleshoot.util.RelayLoadHarness sessions=5000 cipher=true
+ * </pre>
+ * Each platform thread session uses four threads, so large runs may need a
+ * higher <code>ulimit -u</code> and <code>ulimit -n</code>.
+ * <p>
+ * This isn't a unit test and doesn't run with the build.
+ */
+public class RelayLoadHarness {
+
+    private final int sessions;
+
+    private final int rounds;
+
+    private final int size;
+
+    private final boolean cipher;
+
+    private final boolean virtual;
+
+    private final ThreadFactory threadFactory;
+
+    private final byte[] key = CommonUtils.generateKey();
+
+    private final long[] latencies;
+
+    private final AtomicInteger latencyCount = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private final AtomicLong maxHeap = new AtomicLong();
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private RelayLoadHarness(final int sessions, final int rounds,
+        final int size, final boolean cipher, final boolean virtual) {
+        this.sessions = sessions;
+        this.rounds = rounds;
+        this.size = size;
+        this.cipher = cipher;
+        this.virtual = virtual;
+        if (virtual) {
+            this.threadFactory = ThreadUtils.newVirtualThreadFactory("Load");
+        } else {
+            this.threadFactory = new DaemonThreadFactory("Load");
+        }
+        this.latencies = new long[sessions * rounds];
+    }
+
+    public static void main(final String... args) throws Exception {
+        final Map<String, String> opts = new HashMap<String, String>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq < 1) {
+                System.err.println("Expected name=value, not: " + arg);
+                System.exit(1);
+            }
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        final RelayLoadHarness harness = new RelayLoadHarness(
+            intOpt(opts, "sessions", 1000), intOpt(opts, "rounds", 100),
+            intOpt(opts, "size", 4096),
+            Boolean.parseBoolean(opt(opts, "cipher", "false")),
+            Boolean.parseBoolean(opt(opts, "virtual", "false")));
+        harness.run();
+        System.exit(0);
+    }
+
+    private static String opt(final Map<String, String> opts,
+        final String name, final String defaultValue) {
+        final String value = opts.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int intOpt(final Map<String, String> opts,
+        final String name, final int defaultValue) {
+        return Integer.parseInt(opt(opts, name, String.valueOf(defaultValue)));
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(
+            "Relaying %d sessions of %d x %d bytes, cipher=%s, virtual=%s",
+            sessions, rounds, size, cipher, virtual));
+        final InetSocketAddress echoAddress = startEchoServer();
+        final RelayingSocketHandler handler =
+            new RelayingSocketHandler(echoAddress);
+        handler.setThreadFactory(this.threadFactory);
+        // Keep these sessions out of the JMX registry.
+        handler.setSessionRegistry(new RelaySessionRegistry());
+        final InetSocketAddress relayAddress = startRelayServer(handler);
+
+        final ScheduledExecutorService sampler =
+            Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("LoadSampler"));
+        sampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                final long used = memory.getHeapMemoryUsage().getUsed();
+                if (used > maxHeap.get()) {
+                    maxHeap.set(used);
+                }
+            }
+        }, 0, 100, TimeUnit.MILLISECONDS);
+        this.threads.resetPeakThreadCount();
+
+        final CountDownLatch connected = new CountDownLatch(sessions);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(sessions);
+        final long connectStart = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            this.threadFactory.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        runSession(relayAddress, connected, go);
+                    } catch (final Exception e) {
+                        if (errors.getAndIncrement() == 0) {
+                            e.printStackTrace();
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        connected.await();
+        final long connectNanos = System.nanoTime() - connectStart;
+        final int liveThreads = this.threads.getThreadCount();
+        final long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - start;
+        sampler.shutdownNow();
+
+        report(connectNanos, elapsed, liveThreads);
+    }
+
+    private void runSession(final InetSocketAddress relayAddress,
+        final CountDownLatch connected, final CountDownLatch go)
+        throws IOException, InterruptedException {
+        final Socket plain = new Socket();
+        try {
+            plain.connect(relayAddress, 60 * 1000);
+        } finally {
+            connected.countDown();
+        }
+        final Socket sock;
+        if (cipher) {
+            sock = new CipherSocket(plain, key, key);
+        } else {
+            sock = plain;
+        }
+        try {
+            final OutputStream os = sock.getOutputStream();
+            final InputStream is = sock.getInputStream();
+            final byte[] msg = new byte[size];
+            new Random().nextBytes(msg);
+            final byte[] echo = new byte[size];
+            go.await();
+            for (int i = 0; i < rounds; i++) {
+                final long sent = System.nanoTime();
+                os.write(msg);
+                os.flush();
+                readFully(is, echo);
+                latencies[latencyCount.getAndIncrement()] =
+                    System.nanoTime() - sent;
+                if (!Arrays.equals(msg, echo)) {
+                    throw new IOException("Echo didn't match");
+                }
+                bytes.addAndGet(2 * size);
+            }
+        } finally {
+            IOUtils.closeQuietly(sock);
+        }
+    }
+
+    private static void readFully(final InputStream is, final byte[] buf)
+        throws IOException {
+        int read = 0;
+        while (read < buf.length) {
+            final int n = is.read(buf, read, buf.length - read);
+            if (n == -1) {
+                throw new EOFException("Read " + read + " of " + buf.length);
+            }
+            read += n;
+        }
+    }
+
+    private void report(final long connectNanos, final long elapsed,
+        final int liveThreads) {
+        final int count = this.latencyCount.get();
+        final long[] sorted = Arrays.copyOf(this.latencies, count);
+        Arrays.sort(sorted);
+        final double seconds = elapsed / 1e9;
+        System.out.println(String.format("Connected %d sessions in %d ms",
+            sessions, connectNanos / 1000000));
+        System.out.println(String.format(
+            "Echoed %d messages in %.2f s: %.1f MB/s, %.0f messages/s",
+            count, seconds, bytes.get() / seconds / (1024 * 1024),
+            count / seconds));
+        System.out.println(String.format(
+            "Latency ms: p50=%.2f p99=%.2f p999=%.2f max=%.2f",
+            percentile(sorted, 0.5), percentile(sorted, 0.99),
+            percentile(sorted, 0.999), percentile(sorted, 1.0)));
+        System.out.println(String.format(
+            "Platform threads: %d once clients connected, %d peak",
+            liveThreads, this.threads.getPeakThreadCount()));
+        System.out.println(String.format("Peak heap used: %d MB",
+            maxHeap.get() / (1024 * 1024)));
+        System.out.println(String.format("Failed sessions: %d",
+            errors.get()));
+    }
+
+    private static double percentile(final long[] sorted, final double q) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private InetSocketAddress startEchoServer() throws IOException {
+        final ServerSocket server = new ServerSocket(0, sessions);
+        accept(server, "LoadEchoServer", new SocketHandler() {
+            public void handle(final Socket sock) {
+                threadFactory.newThread(new Runnable() {
+                    public void run() {
+                        try {
+                            final InputStream is = sock.getInputStream();
+                            final OutputStream os = sock.getOutputStream();
+                            final byte[] buf = new byte[16 * 1024];
+                            int n;
+                            while ((n = is.read(buf)) != -1) {
+                                os.write(buf, 0, n);
+                            }
+                        } catch (final IOException e) {
+                            // The relay closed the connection.
+                        } finally {
+                            IOUtils.closeQuietly(sock);
+                        }
+                    }
+                }).start();
+            }
+        });
+        return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    private InetSocketAddress startRelayServer(
+        final RelayingSocketHandler handler) throws IOException {
+        final ServerSocket server = new ServerSocket(0, sessions);
+        final AtomicInteger ids = new AtomicInteger();
+        accept(server, "LoadRelayServer", new SocketHandler() {
+            public void handle(final Socket sock) {
+                final Socket external;
+                if (cipher) {
+                    external = new CipherSocket(sock, key, key);
+                } else {
+                    external = sock;
+                }
+                try {
+                    handler.onSocket("load-" + ids.incrementAndGet(),
+                        external);
+                } catch (final IOException e) {
+                    if (errors.getAndIncrement() == 0) {
+                        e.printStackTrace();
+                    }
+                    IOUtils.closeQuietly(external);
+                }
+            }
+        });
+        return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    private static void accept(final ServerSocket server, final String name,
+        final SocketHandler handler) {
+        final Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        handler.handle(server.accept());
+                    } catch (final IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                }
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private interface SocketHandler {
+        void handle(Socket sock);
+    }
+}
@@ -0,0 +1,118 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class RelaySessionRegistryTest {
+
+    @Test
+    public void testTrackAndKill() throws Exception {
+        final ServerSocket echoServer = startEchoServer();
+        final RelayingSocketHandler handler = new RelayingSocketHandler(
+            new InetSocketAddress("127.0.0.1", echoServer.getLocalPort()));
+        final RelaySessionRegistry registry = new RelaySessionRegistry();
+        handler.setSessionRegistry(registry);
+
+        final ServerSocket server = new ServerSocket(0);
+        final Socket client = new Socket("127.0.0.1", server.getLocalPort());
+        final Socket accepted = server.accept();
+        handler.onSocket("session", accepted);
+        assertEquals(1, registry.getSessionCount());
+
+        final OutputStream os = client.getOutputStream();
+        final InputStream is = client.getInputStream();
+        final byte[] data = new byte[50000];
+        os.write(data);
+        int read = 0;
+        while (read < data.length) {
+            read += is.read(new byte[8192]);
+        }
+
+        final RelaySession session = registry.get("session");
+        // The count can land just after the data does.
+        waitFor(session, data.length);
+        assertEquals(data.length, session.getBytesIn());
+        assertEquals(data.length, session.getBytesOut());
+        final FiveTuple tuple = new FiveTuple(
+            (InetSocketAddress) accepted.getLocalSocketAddress(),
+            (InetSocketAddress) accepted.getRemoteSocketAddress(),
+            FiveTuple.Protocol.TCP);
+        assertTrue(session == registry.get(tuple));
+        assertEquals(1, registry.topSessionsByRate(5).length);
+
+        // A second session with the same id gets a unique one.
+        final Socket client2 = new Socket("127.0.0.1", server.getLocalPort());
+        handler.onSocket("session", server.accept());
+        assertEquals(2, registry.getSessionCount());
+
+        assertTrue(registry.killSession("session"));
+        assertEquals(-1, is.read());
+        Thread.sleep(100);
+        assertEquals(0, registry.idleSessions(60000).length);
+        assertEquals(1, registry.killIdleSessions(0));
+        assertEquals(-1, client2.getInputStream().read());
+
+        // The copy threads unregister the sessions as they finish.
+        final long end = System.currentTimeMillis() + 5000;
+        while (registry.getSessionCount() > 0 &&
+            System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, registry.getSessionCount());
+        client.close();
+        client2.close();
+        server.close();
+        echoServer.close();
+    }
+
+    private void waitFor(final RelaySession session, final long bytes)
+        throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while (session.getBytesOut() < bytes &&
+            System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    private ServerSocket startEchoServer() throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        final Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket sock = server.accept();
+                        final Thread copier = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    IOUtils.copy(sock.getInputStream(),
+                                        sock.getOutputStream());
+                                } catch (final IOException e) {
+                                    // The relay closed the connection.
+                                } finally {
+                                    IOUtils.closeQuietly(sock);
+                                }
+                            }
+                        });
+                        copier.setDaemon(true);
+                        copier.start();
+                    }
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+}
@@ -0,0 +1,203 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests for relaying sessions over selector threads.
+ */
+public class SelectorRelayingSocketHandlerTest {
+
+    @Test
+    public void testRelayPlain() throws Exception {
+        final InetSocketAddress echo = startEchoServer();
+        final SelectorRelayingSocketHandler handler =
+            new SelectorRelayingSocketHandler(echo, 1);
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        // More than the socket buffers hold, so the relay has to wait on
+        // the slower side.
+        final byte[] data = buildData(4 * 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            final Socket client = new Socket();
+            client.connect(server.socket().getLocalSocketAddress());
+            handler.onSocket("plain-" + i, server.accept().socket());
+            assertTrue(Arrays.equals(data, echo(client, data)));
+        }
+        handler.close();
+        server.close();
+    }
+
+    @Test
+    public void testRelayCipher() throws Exception {
+        final InetSocketAddress echo = startEchoServer();
+        final SelectorRelayingSocketHandler handler =
+            new SelectorRelayingSocketHandler(echo, 2);
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final byte[] writeKey = CommonUtils.generateKey();
+        final byte[] readKey = CommonUtils.generateKey();
+
+        final byte[] data = buildData(1024 * 1024);
+        final Socket client = new CipherSocket(new Socket("127.0.0.1",
+            server.socket().getLocalPort()), writeKey, readKey);
+        handler.onSocket("cipher", new CipherSocket(
+            server.accept().socket(), readKey, writeKey));
+        assertTrue(Arrays.equals(data, echo(client, data)));
+        handler.close();
+        server.close();
+    }
+
+    @Test
+    public void testRelayPooled() throws Exception {
+        final InetSocketAddress echo = startEchoServer();
+        final SelectorRelayingSocketHandler handler =
+            new SelectorRelayingSocketHandler(echo, 1);
+        // Fewer buffers than the sessions could use at once.
+        final DirectBufferPool pool = new DirectBufferPool(8192, 3);
+        handler.setBufferPool(pool);
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+        final byte[] data = buildData(1024 * 1024);
+        final Socket[] clients = new Socket[4];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Socket();
+            clients[i].connect(server.socket().getLocalSocketAddress());
+            handler.onSocket("pooled-" + i, server.accept().socket());
+        }
+        final AtomicInteger matched = new AtomicInteger();
+        final Thread[] readers = new Thread[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            final Socket client = clients[i];
+            readers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        if (Arrays.equals(data, echo(client, data))) {
+                            matched.incrementAndGet();
+                        }
+                    } catch (final IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        for (final Thread reader : readers) {
+            reader.join(20000);
+        }
+        assertEquals(clients.length, matched.get());
+
+        // Buffers go back to the pool as the sessions close.
+        final long end = System.currentTimeMillis() + 5000;
+        while (pool.available() < pool.getCapacity() &&
+            System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(pool.getCapacity(), pool.available());
+        handler.close();
+        server.close();
+    }
+
+    @Test
+    public void testFallsBackToThreads() throws Exception {
+        final InetSocketAddress echo = startEchoServer();
+        final SelectorRelayingSocketHandler handler =
+            new SelectorRelayingSocketHandler(echo, 1);
+        final ServerSocket server = new ServerSocket(0);
+
+        final byte[] data = buildData(100000);
+        final Socket client = new Socket("127.0.0.1", server.getLocalPort());
+        handler.onSocket("threaded", server.accept());
+        assertTrue(Arrays.equals(data, echo(client, data)));
+        handler.close();
+        server.close();
+    }
+
+    /**
+     * Writes the data on another thread and returns as much as we read
+     * back.
+     */
+    private byte[] echo(final Socket client, final byte[] data)
+        throws IOException {
+        final Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final OutputStream os = client.getOutputStream();
+                    for (int i = 0; i < data.length; i += 10000) {
+                        os.write(data, i, Math.min(10000, data.length - i));
+                    }
+                    os.flush();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final InputStream is = client.getInputStream();
+        final byte[] buf = new byte[8192];
+        int read;
+        while (received.size() < data.length && (read = is.read(buf)) != -1) {
+            received.write(buf, 0, read);
+        }
+        client.close();
+        return received.toByteArray();
+    }
+
+    private InetSocketAddress startEchoServer() throws IOException {
+        final ServerSocket server = new ServerSocket(0);
+        final Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket sock = server.accept();
+                        final Thread copier = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    IOUtils.copy(sock.getInputStream(),
+                                        sock.getOutputStream());
+                                } catch (final IOException e) {
+                                    // The client closed the connection.
+                                } finally {
+                                    IOUtils.closeQuietly(sock);
+                                }
+                            }
+                        });
+                        copier.setDaemon(true);
+                        copier.start();
+                    }
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+    }
+
+    private static byte[] buildData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,98 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for decoding records in constant memory.
+ */
+public class StreamingRecordDecoderTest {
+
+    @Test
+    public void testStreams() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(1000000);
+        final byte[] encoded = CommonUtils.encode(key, data, 0, data.length);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(data.length, CommonUtils.decodeAllMessages(key,
+            new ByteArrayInputStream(encoded), os));
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+
+        try {
+            CommonUtils.decodeAllMessages(key, new ByteArrayInputStream(
+                encoded, 0, encoded.length - 1), new ByteArrayOutputStream());
+            fail("Should have noticed the truncated record");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testChannel() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(300000);
+        final byte[] encoded = CommonUtils.encode(key, data, 0, data.length);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new StreamingRecordDecoder(key).decode(
+            Channels.newChannel(new ByteArrayInputStream(encoded)),
+            new CopyingClosure(os));
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+    }
+
+    @Test
+    public void testSplitBuffers() throws Exception {
+        final byte[] key = CommonUtils.generateKey();
+        final byte[] data = buildData(200000);
+        final RecordCodec codec = new RecordCodec(key, RecordCodec.VERSION_GCM);
+        final byte[] encoded = codec.encode(data, 0, data.length);
+
+        // Split records at awkward places, including mid-header.
+        final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        int index = 0;
+        int size = 1;
+        while (index < encoded.length) {
+            final int len = Math.min(size, encoded.length - index);
+            buffers.add(ByteBuffer.wrap(encoded, index, len));
+            index += len;
+            size = size * 3 + 1;
+        }
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final StreamingRecordDecoder decoder = new StreamingRecordDecoder(key);
+        assertEquals(data.length,
+            decoder.decode(buffers, new CopyingClosure(os)));
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+    }
+
+    private static final class CopyingClosure implements Closure<ByteBuffer> {
+
+        private final ByteArrayOutputStream os;
+
+        private CopyingClosure(final ByteArrayOutputStream os) {
+            this.os = os;
+        }
+
+        public void execute(final ByteBuffer buf) {
+            os.write(buf.array(), buf.position(), buf.remaining());
+        }
+    }
+
+    private static byte[] buildData(final int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,46 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class ThreadUtilsTest {
+
+    @Test
+    public void testVirtualThreadFactory() throws Exception {
+        final ThreadFactory tf = ThreadUtils.newVirtualThreadFactory("test");
+        final AtomicBoolean ran = new AtomicBoolean();
+        final Thread thread = tf.newThread(new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        });
+        // Virtual threads are always daemons, and we fall back to daemons.
+        assertTrue(thread.isDaemon());
+        assertTrue(thread.getName().startsWith("test-"));
+        thread.start();
+        thread.join(5000);
+        assertTrue(ran.get());
+    }
+
+    @Test
+    public void testThreadedCopyWithFactory() throws Exception {
+        final byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 7);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CommonUtils.threadedCopy(new ByteArrayInputStream(data), baos,
+            "copy", ThreadUtils.newVirtualThreadFactory("copier"));
+        final long end = System.currentTimeMillis() + 5000;
+        while (baos.size() < data.length &&
+            System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertTrue(Arrays.equals(data, baos.toByteArray()));
+    }
+}
@@ -0,0 +1,82 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testRate() throws Exception {
+        final TokenBucket bucket = new TokenBucket(100 * 1024, 10 * 1024, null);
+        final long start = System.currentTimeMillis();
+        // The first 10k is the burst, and the other 50k take half a second.
+        for (int i = 0; i < 15; i++) {
+            bucket.acquire(4096);
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Too fast: " + elapsed, elapsed >= 450);
+        assertTrue("Too slow: " + elapsed, elapsed < 1500);
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        final TokenBucket bucket = new TokenBucket(0);
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 100000; i++) {
+            bucket.acquire(65536);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testParentSharedFairly() throws Exception {
+        final TokenBucket global = new TokenBucket(200 * 1024, 0, null);
+        final AtomicLong[] sent = new AtomicLong[2];
+        final Thread[] threads = new Thread[2];
+        final long end = System.currentTimeMillis() + 1000;
+        for (int i = 0; i < threads.length; i++) {
+            final AtomicLong count = new AtomicLong();
+            sent[i] = count;
+            // A session limit well above the global one.
+            final TokenBucket session = new TokenBucket(1024 * 1024, global);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            session.acquire(4096);
+                            count.addAndGet(4096);
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long total = sent[0].get() + sent[1].get();
+        assertTrue("Too much: " + total, total <= 260 * 1024);
+        assertTrue("Unfair: " + sent[0] + " " + sent[1],
+            Math.abs(sent[0].get() - sent[1].get()) < total / 4);
+    }
+
+    @Test
+    public void testShapedCopy() throws Exception {
+        final byte[] data = new byte[40 * 1024];
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final long start = System.currentTimeMillis();
+        final long copied = IoUtils.copy(new ByteArrayInputStream(data), baos,
+            new TokenBucket(64 * 1024, 8 * 1024, null));
+        final long elapsed = System.currentTimeMillis() - start;
+        assertEquals(data.length, copied);
+        assertTrue("Too fast: " + elapsed, elapsed >= 400);
+    }
+}
@@ -0,0 +1,146 @@
+package org.littleshoot.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WarmSocketPoolTest {
+
+    @Test
+    public void testTakeWarmAndSkipDead() throws Exception {
+        takeWarmAndSkipDead(false);
+    }
+
+    @Test
+    public void testTakeWarmAndSkipDeadChannels() throws Exception {
+        takeWarmAndSkipDead(true);
+    }
+
+    @Test
+    public void testWriteWhileReadBlocked() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final BlockingQueue<Socket> accepted = startAccepting(server);
+        final WarmSocketPool pool = new WarmSocketPool(
+            new InetSocketAddress("127.0.0.1", server.getLocalPort()), 1);
+        waitForAvailable(pool, 1);
+        final Socket sock = pool.take();
+        assertNull(sock.getChannel());
+        final Socket serverSide = accepted.poll(5, TimeUnit.SECONDS);
+
+        // Block reading from the server as the relay does, then write the
+        // other way on this thread.
+        final CountDownLatch reading = new CountDownLatch(1);
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final InputStream is = sock.getInputStream();
+                    reading.countDown();
+                    is.read();
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        reading.await();
+        Thread.sleep(200);
+
+        final long start = System.currentTimeMillis();
+        sock.getOutputStream().write(42);
+        serverSide.setSoTimeout(5000);
+        assertEquals(42, serverSide.getInputStream().read());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        sock.close();
+        serverSide.close();
+        pool.close();
+        server.close();
+    }
+
+    private void takeWarmAndSkipDead(final boolean channels)
+        throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final BlockingQueue<Socket> accepted = startAccepting(server);
+
+        final WarmSocketPool pool = new WarmSocketPool(
+            new InetSocketAddress("127.0.0.1", server.getLocalPort()), 2,
+            WarmSocketPool.DEFAULT_MAX_IDLE, channels);
+        waitForAvailable(pool, 2);
+
+        // The server hangs up on the newest pooled connection.
+        accepted.poll(5, TimeUnit.SECONDS);
+        accepted.poll(5, TimeUnit.SECONDS).close();
+        Thread.sleep(200);
+
+        final Socket sock = pool.take();
+        assertTrue(sock.isConnected());
+        if (channels) {
+            assertTrue(sock.getChannel().isBlocking());
+        } else {
+            assertNull(sock.getChannel());
+        }
+        sock.getOutputStream().write(1);
+        sock.close();
+
+        // The pool fills back up in the background.
+        waitForAvailable(pool, 2);
+        pool.close();
+        assertEquals(0, pool.available());
+        server.close();
+    }
+
+    @Test
+    public void testConnectsWhenEmpty() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        // Connections are dropped from the pool straight away.
+        final WarmSocketPool pool = new WarmSocketPool(
+            new InetSocketAddress("127.0.0.1", server.getLocalPort()), 1, 0);
+        final Socket sock = pool.take();
+        assertTrue(sock.isConnected());
+        sock.close();
+        pool.close();
+        server.close();
+    }
+
+    private static BlockingQueue<Socket> startAccepting(
+        final ServerSocket server) {
+        final BlockingQueue<Socket> accepted =
+            new LinkedBlockingQueue<Socket>();
+        final Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        accepted.add(server.accept());
+                    }
+                } catch (final IOException e) {
+                    // Closed.
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return accepted;
+    }
+
+    private void waitForAvailable(final WarmSocketPool pool, final int count)
+        throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while (pool.available() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, pool.available());
+    }
+}